@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+
+/**
+ * Benchmarks environment setup.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Route log4j to a discarding writer : layout and appender costs are measured, console I/O is not.
+     */
+    public static void configureLogging() {
+        Logger root = Logger.getRootLogger();
+        root.removeAllAppenders();
+        root.setLevel(Level.INFO);
+        root.addAppender(new WriterAppender(new PatternLayout("%d{HH:mm:ss} %5p : %m%n"), new NullWriter()));
+    }
+
+    /**
+     * Create a temporary journal file, and expose it through 'listener.file.output'.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static File journal() throws IOException {
+        File journal = File.createTempFile("jalam-bench-", ".log");
+        journal.deleteOnExit();
+        System.setProperty("listener.file.output", journal.getAbsolutePath());
+        return journal;
+    }
+
+    private static final class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
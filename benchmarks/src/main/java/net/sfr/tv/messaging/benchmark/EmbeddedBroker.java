@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.core.client.ClientSessionFactory;
+import org.hornetq.api.core.client.HornetQClient;
+import org.hornetq.api.core.client.ServerLocator;
+import org.hornetq.api.jms.JMSFactoryType;
+import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
+import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.NettyAcceptorFactory;
+import org.hornetq.core.remoting.impl.netty.NettyConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.TransportConstants;
+import org.hornetq.core.server.HornetQServer;
+import org.hornetq.core.server.HornetQServers;
+import org.hornetq.core.server.JournalType;
+import org.hornetq.core.settings.impl.AddressFullMessagePolicy;
+import org.hornetq.core.settings.impl.AddressSettings;
+import org.hornetq.jms.server.JMSServerManager;
+import org.hornetq.jms.server.config.impl.ConnectionFactoryConfigurationImpl;
+import org.hornetq.jms.server.impl.JMSServerManagerImpl;
+import org.jnp.server.Main;
+import org.jnp.server.NamingBeanImpl;
+
+/**
+ * In-process HornetQ 2.3 server, for end-to-end benchmarks :
+ * <ul>
+ *  <li> In-VM acceptor : Load injection, without network costs.
+ *  <li> Netty acceptor, on localhost : The clients under test connect through it, like to a remote server.
+ *  <li> JNP naming server : Exposes 'ConnectionFactory', 'PreAckConsumerConnectionFactory', and destinations as
+ * '/queue/[name]' and '/topic/[name]', to the JMS clients.
+ * </ul>
+ * Persistence is enabled (NIO journal, in a temporary directory) : Durable destinations and persistent messages are
+ * actually journaled. Addresses page to disk beyond 64MB, so that slow consumers don't exhaust the heap.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class EmbeddedBroker {
+
+    public static final String GROUP = "bench";
+
+    public static final String CONNECTION_FACTORY = "ConnectionFactory";
+
+    public static final String PREACK_CONNECTION_FACTORY = "PreAckConsumerConnectionFactory";
+
+    private final int nettyPort;
+
+    private final int jndiPort;
+
+    private final File dataDirectory;
+
+    private final NamingBeanImpl naming;
+
+    private final Main jnpServer;
+
+    private final HornetQServer server;
+
+    private final JMSServerManager jmsServer;
+
+    private final ServerLocator injectionLocator;
+
+    /**
+     * @param nettyPort Core protocol port
+     * @param jndiPort JNP port. The RMI port is the next one.
+     * @throws Exception
+     */
+    public EmbeddedBroker(int nettyPort, int jndiPort) throws Exception {
+        this.nettyPort = nettyPort;
+        this.jndiPort = jndiPort;
+        dataDirectory = createDataDirectory();
+
+        naming = new NamingBeanImpl();
+        naming.start();
+        jnpServer = new Main();
+        jnpServer.setNamingInfo(naming);
+        jnpServer.setBindAddress("localhost");
+        jnpServer.setPort(jndiPort);
+        jnpServer.setRmiBindAddress("localhost");
+        jnpServer.setRmiPort(jndiPort + 1);
+        jnpServer.start();
+
+        ConfigurationImpl config = new ConfigurationImpl();
+        config.setSecurityEnabled(false);
+        config.setJMXManagementEnabled(false);
+        config.setPersistenceEnabled(true);
+        config.setJournalType(JournalType.NIO);
+        config.setJournalDirectory(new File(dataDirectory, "journal").getPath());
+        config.setBindingsDirectory(new File(dataDirectory, "bindings").getPath());
+        config.setPagingDirectory(new File(dataDirectory, "paging").getPath());
+        config.setLargeMessagesDirectory(new File(dataDirectory, "large-messages").getPath());
+
+        Map<String, Object> netty = new HashMap<>();
+        netty.put(TransportConstants.HOST_PROP_NAME, "localhost");
+        netty.put(TransportConstants.PORT_PROP_NAME, nettyPort);
+        config.getAcceptorConfigurations().add(new TransportConfiguration(NettyAcceptorFactory.class.getName(), netty));
+        config.getAcceptorConfigurations().add(new TransportConfiguration(InVMAcceptorFactory.class.getName()));
+        config.getConnectorConfigurations().put("netty", new TransportConfiguration(NettyConnectorFactory.class.getName(), netty));
+
+        AddressSettings paging = new AddressSettings();
+        paging.setMaxSizeBytes(64 * 1024 * 1024);
+        paging.setPageSizeBytes(8 * 1024 * 1024);
+        paging.setAddressFullMessagePolicy(AddressFullMessagePolicy.PAGE);
+        config.getAddressesSettings().put("#", paging);
+
+        server = HornetQServers.newHornetQServer(config);
+        jmsServer = new JMSServerManagerImpl(server);
+        jmsServer.setContext(new InitialContext(jndiEnvironment()));
+        jmsServer.start();
+
+        jmsServer.createConnectionFactory(CONNECTION_FACTORY, false, JMSFactoryType.CF, Arrays.asList("netty"), CONNECTION_FACTORY);
+        ConnectionFactoryConfigurationImpl preAck = new ConnectionFactoryConfigurationImpl(PREACK_CONNECTION_FACTORY, false, Arrays.asList("netty"), PREACK_CONNECTION_FACTORY);
+        preAck.setPreAcknowledge(true);
+        jmsServer.createConnectionFactory(false, preAck, PREACK_CONNECTION_FACTORY);
+
+        injectionLocator = HornetQClient.createServerLocatorWithoutHA(new TransportConfiguration(InVMConnectorFactory.class.getName()));
+        injectionLocator.setBlockOnDurableSend(false);
+        injectionLocator.setBlockOnNonDurableSend(false);
+        injectionLocator.setProducerWindowSize(1024 * 1024);
+    }
+
+    private static File createDataDirectory() throws IOException {
+        File dir = File.createTempFile("jalam-broker-", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create ".concat(dir.getPath()));
+        }
+        return dir;
+    }
+
+    private Properties jndiEnvironment() {
+        Properties env = new Properties();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "org.jnp.interfaces.NamingContextFactory");
+        env.put(Context.URL_PKG_PREFIXES, "org.jboss.naming:org.jnp.interfaces");
+        env.put(Context.PROVIDER_URL, "jnp://localhost:" + jndiPort);
+        return env;
+    }
+
+    /**
+     * @return Messaging configuration ('messaging.properties' content) pointing at this broker, as a single servers group.
+     */
+    public Properties messagingProperties() {
+        Properties props = new Properties();
+        props.setProperty("config.groups", GROUP);
+        props.setProperty(GROUP.concat(".jms.server.local.host"), "localhost");
+        props.setProperty(GROUP.concat(".jms.server.local.port"), String.valueOf(jndiPort));
+        props.setProperty(GROUP.concat(".hqtransport.server.local.port"), String.valueOf(nettyPort));
+        return props;
+    }
+
+    /**
+     * @param name
+     * @param durable
+     * @return The queue JNDI name
+     * @throws Exception
+     */
+    public String createQueue(String name, boolean durable) throws Exception {
+        String jndiName = "/queue/".concat(name);
+        jmsServer.createQueue(false, name, null, durable, jndiName);
+        return jndiName;
+    }
+
+    /**
+     * @param name
+     * @return The topic JNDI name
+     * @throws Exception
+     */
+    public String createTopic(String name) throws Exception {
+        String jndiName = "/topic/".concat(name);
+        jmsServer.createTopic(false, name, jndiName);
+        return jndiName;
+    }
+
+    /**
+     * Remove a destination, with its subscriptions and remaining messages.
+     *
+     * @param name
+     * @param topic
+     */
+    public void destroy(String name, boolean topic) {
+        try {
+            if (topic) {
+                jmsServer.destroyTopic(name);
+            } else {
+                jmsServer.destroyQueue(name);
+            }
+        } catch (Exception ex) {
+            System.err.println("Unable to remove ".concat(name).concat(" : ").concat(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    /**
+     * @return A new in-VM session factory, for load injection.
+     * @throws Exception
+     */
+    public ClientSessionFactory injectionSessionFactory() throws Exception {
+        return injectionLocator.createSessionFactory();
+    }
+
+    public void stop() {
+        try {
+            injectionLocator.close();
+            jmsServer.stop();
+            jnpServer.stop();
+            naming.stop();
+        } catch (Exception ex) {
+            System.err.println("Unable to stop the embedded broker : ".concat(String.valueOf(ex.getMessage())));
+        }
+        delete(dataDirectory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
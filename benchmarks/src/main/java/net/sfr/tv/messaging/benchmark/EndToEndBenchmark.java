@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import com.codahale.metrics.Gauge;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import net.sfr.tv.hornetq.client.impl.FileOutMessageHandler;
+import net.sfr.tv.hornetq.client.impl.HornetQClientImpl;
+import net.sfr.tv.hornetq.client.impl.LoggerMessageHandler;
+import net.sfr.tv.hornetq.client.impl.ThroughputMessageHandler;
+import net.sfr.tv.jms.client.impl.JmsClientImpl;
+import net.sfr.tv.jms.client.impl.listener.FileOutMessageListener;
+import net.sfr.tv.jms.client.impl.listener.LatencyListener;
+import net.sfr.tv.jms.client.impl.listener.LoggerMessageListener;
+import net.sfr.tv.jms.client.impl.listener.ThroughputMessageListener;
+import net.sfr.tv.messaging.benchmark.SyntheticMessages.Kind;
+import net.sfr.tv.messaging.client.impl.MessagingClientImpl;
+import net.sfr.tv.messaging.client.impl.Pacer;
+import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
+import org.HdrHistogram.Histogram;
+import org.hornetq.api.core.Message;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.ClientProducer;
+import org.hornetq.api.core.client.ClientSession;
+import org.hornetq.api.core.client.ClientSessionFactory;
+
+/**
+ * End-to-end throughput and latency of the real clients (JmsClientImpl, HornetQClientImpl), against an embedded
+ * HornetQ server. Messages are injected through the in-VM acceptor, and consumed through the Netty one.
+ * @see net.sfr.tv.messaging.benchmark.EmbeddedBroker
+ *
+ * Runs every combination of API (JMS, CORE), built-in listener, destination type, durability (durable queue or
+ * subscription, persistent messages) and acknowledgement mode, unless restricted. Combinations a client doesn't
+ * support are skipped.
+ *
+ * Latency is measured from the intended send time to listener completion : In open loop (default), it mostly
+ * measures queueing. Use a fixed rate, below the measured throughput, for service latency.
+ *
+ * One result per run, as a JSON object per line (default) or CSV, appended to the output file, so that runs of
+ * different versions (see 'bench.label') can be compared.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'bench.api', 'bench.listeners', 'bench.destinations', 'bench.durable', 'bench.ack' : Comma separated lists,
+ * restricting the combinations. Default, all of JMS,CORE ; LOGGER,FILEOUT,THROUGHPUT,LATENCY ; QUEUE,TOPIC ;
+ * false,true ; IMMEDIATE,BATCH,DUPS_OK,PRE_ACK.
+ *  <li> 'bench.messages' : Measured messages per run. Default 50000.
+ *  <li> 'bench.warmup' : Warmup messages per run, not measured. Default 10000.
+ *  <li> 'bench.message.type' : TEXT (default), BYTES.
+ *  <li> 'bench.body.size' : Body size, in bytes. Default 1024.
+ *  <li> 'bench.properties' : Number of string properties per message. Default 0.
+ *  <li> 'bench.rate' : Injection rate, in messages per second. Default 0, open loop.
+ *  <li> 'bench.timeout' : Max. run duration, in ms. Default 120000.
+ *  <li> 'bench.output' : Results file. Default 'e2e-results.json'.
+ *  <li> 'bench.format' : JSON (default), CSV.
+ *  <li> 'bench.label' : Run label, e.g. the jalam version. Default 'unknown'.
+ *  <li> 'bench.port', 'bench.jndi.port' : Broker ports. Default 15445, 11099 (and 11100, RMI).
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class EndToEndBenchmark {
+
+    public enum Api {
+        JMS, CORE
+    }
+
+    public enum Listener {
+        LOGGER(LoggerMessageListener.class, LoggerMessageHandler.class),
+        FILEOUT(FileOutMessageListener.class, FileOutMessageHandler.class),
+        THROUGHPUT(ThroughputMessageListener.class, ThroughputMessageHandler.class),
+        LATENCY(LatencyListener.class, null);
+
+        private final Class jmsListener;
+
+        private final Class coreHandler;
+
+        private Listener(Class jmsListener, Class coreHandler) {
+            this.jmsListener = jmsListener;
+            this.coreHandler = coreHandler;
+        }
+
+        private Class forApi(Api api) {
+            return api == Api.JMS ? jmsListener : coreHandler;
+        }
+    }
+
+    public enum DestinationType {
+        QUEUE, TOPIC
+    }
+
+    public enum Ack {
+        IMMEDIATE, BATCH, DUPS_OK,
+        /** Through the pre-acknowledging connection factory (JMS), or 'hq.pre.ack' (core) */
+        PRE_ACK
+    }
+
+    public enum Format {
+        JSON, CSV
+    }
+
+    private static final String[] COLUMNS = {"label", "api", "listener", "destination", "durable", "ack", "messages",
+        "bodySize", "rate", "complete", "received", "throughput", "p50", "p90", "p99", "p999", "max"};
+
+    private static final SimpleString MESSAGE_ID = new SimpleString("hq-message-id");
+
+    private final EmbeddedBroker broker;
+
+    private final long messages = Long.getLong("bench.messages", 50000L);
+
+    private final long warmup = Long.getLong("bench.warmup", 10000L);
+
+    private final Kind messageType = Kind.valueOf(System.getProperty("bench.message.type", Kind.TEXT.name()).toUpperCase());
+
+    private final int bodySize = Integer.getInteger("bench.body.size", 1024);
+
+    private final int propertyCount = Integer.getInteger("bench.properties", 0);
+
+    private final double rate = Double.parseDouble(System.getProperty("bench.rate", "0"));
+
+    private final long timeout = Long.getLong("bench.timeout", 120000L);
+
+    private final Format format = Format.valueOf(System.getProperty("bench.format", Format.JSON.name()).toUpperCase());
+
+    private final String label = System.getProperty("bench.label", "unknown");
+
+    private int runIdx = 0;
+
+    private EndToEndBenchmark(EmbeddedBroker broker) {
+        this.broker = broker;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkSupport.configureLogging();
+
+        EmbeddedBroker broker = new EmbeddedBroker(Integer.getInteger("bench.port", 15445), Integer.getInteger("bench.jndi.port", 11099));
+        EndToEndBenchmark benchmark = new EndToEndBenchmark(broker);
+
+        File output = new File(System.getProperty("bench.output", "e2e-results.json"));
+        boolean header = benchmark.format == Format.CSV && !output.exists();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(output, true), SyntheticMessages.UTF8)) {
+            if (header) {
+                out.write(join(COLUMNS));
+                out.write('\n');
+            }
+            for (Api api : values(Api.class, "bench.api")) {
+                for (Listener listener : values(Listener.class, "bench.listeners")) {
+                    for (DestinationType destination : values(DestinationType.class, "bench.destinations")) {
+                        for (String durable : System.getProperty("bench.durable", "false,true").split("\\s*,\\s*")) {
+                            for (Ack ack : values(Ack.class, "bench.ack")) {
+                                if (listener.forApi(api) == null) {
+                                    continue;
+                                }
+                                String result = benchmark.run(api, listener, destination, Boolean.parseBoolean(durable), ack);
+                                out.write(result);
+                                out.write('\n');
+                                out.flush();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            broker.stop();
+        }
+        System.out.println("Results written to ".concat(output.getAbsolutePath()));
+        // Lingering client threads
+        System.exit(0);
+    }
+
+    private static <E extends Enum<E>> List<E> values(Class<E> type, String property) {
+        List<E> result = new ArrayList<>();
+        String value = System.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            for (E e : type.getEnumConstants()) {
+                result.add(e);
+            }
+        } else {
+            for (String name : value.trim().split("\\s*,\\s*")) {
+                result.add(Enum.valueOf(type, name.toUpperCase()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run a combination.
+     *
+     * @return The result, formatted.
+     */
+    private String run(Api api, Listener listener, DestinationType destinationType, boolean durable, Ack ack) throws Exception {
+        String name = "bench" + runIdx++;
+        boolean topic = destinationType == DestinationType.TOPIC;
+        String jndiName = topic ? broker.createTopic(name) : broker.createQueue(name, durable);
+        String address = (topic ? "jms.topic." : "jms.queue.").concat(name);
+
+        // Read by the acknowledgers, upon listener instantiation
+        System.setProperty("listener.ack.mode", ack == Ack.PRE_ACK ? Ack.IMMEDIATE.name() : ack.name());
+        // Set either way : Core queue and non durable subscriptions require tuned consumers
+        System.setProperty("hq.pre.ack", String.valueOf(ack == Ack.PRE_ACK));
+        File journal = listener == Listener.FILEOUT ? BenchmarkSupport.journal() : null;
+
+        Probe probe = new Probe(warmup, messages);
+        ProbeLifecycleController.setProbe(probe);
+
+        String scenario = api + " " + listener + " " + destinationType + (durable ? " durable" : "") + " " + ack;
+        System.out.println("Running ".concat(scenario).concat(" ..."));
+
+        MessagingClientImpl client = null;
+        boolean complete = false;
+        try {
+            MessagingProvidersConfiguration config = new MessagingProvidersConfiguration(broker.messagingProperties(), null);
+            if (api == Api.JMS) {
+                client = new JmsClientImpl(config, null, topic, durable, "jalam-".concat(name), name, "",
+                        ProbeLifecycleController.class, listener.forApi(api), new String[]{jndiName},
+                        ack == Ack.PRE_ACK ? EmbeddedBroker.PREACK_CONNECTION_FACTORY : EmbeddedBroker.CONNECTION_FACTORY);
+            } else {
+                client = new HornetQClientImpl(config, null, topic, durable, name, "",
+                        ProbeLifecycleController.class, listener.forApi(api), new String[]{address}, 1);
+            }
+            client.start();
+            if (awaitConnection(client)) {
+                inject(address, durable);
+                complete = probe.await(timeout);
+            } else {
+                System.err.println("Client not connected, skipping ".concat(scenario));
+            }
+        } finally {
+            if (client != null) {
+                client.shutdown();
+            }
+            broker.destroy(name, topic);
+            if (journal != null) {
+                journal.delete();
+            }
+        }
+
+        Histogram latencies = probe.getLatencies();
+        System.out.println(String.format(Locale.ROOT, "%s : %.0f msg/s, latency (us) p50 %d, p99 %d, max %d%s", scenario,
+                probe.getThroughput(), latencies.getValueAtPercentile(50.0), latencies.getValueAtPercentile(99.0),
+                latencies.getMaxValue(), complete ? "" : " (incomplete : " + probe.getReceived() + " received)"));
+
+        Object[] values = {label, api, listener, destinationType, durable, ack, messages, bodySize, rate, complete,
+            probe.getReceived(), Math.round(probe.getThroughput()), latencies.getValueAtPercentile(50.0),
+            latencies.getValueAtPercentile(90.0), latencies.getValueAtPercentile(99.0), latencies.getValueAtPercentile(99.9),
+            latencies.getMaxValue()};
+        return format == Format.CSV ? join(values) : json(values);
+    }
+
+    /**
+     * Connections are established in the background : Wait for the subscription, so that no topic message gets lost.
+     */
+    private boolean awaitConnection(MessagingClientImpl client) throws InterruptedException {
+        Gauge established = client.getMetrics().getRegistry().getGauges().get("connections.established");
+        long deadline = System.currentTimeMillis() + 30000;
+        while (established == null || ((Number) established.getValue()).intValue() < 1) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+            established = client.getMetrics().getRegistry().getGauges().get("connections.established");
+        }
+        return true;
+    }
+
+    /**
+     * Send the warmup and measured messages, through the in-VM acceptor.
+     */
+    private void inject(String address, boolean durable) throws Exception {
+        String body = SyntheticMessages.body(bodySize);
+        SimpleString textBody = new SimpleString(body);
+        byte[] bytesBody = body.getBytes(SyntheticMessages.UTF8);
+        SimpleString[] propertyNames = new SimpleString[propertyCount];
+        for (int i = 0; i < propertyCount; i++) {
+            propertyNames[i] = new SimpleString("prop" + i);
+        }
+        SimpleString sendTime = new SimpleString(Probe.SEND_TIME);
+
+        Pacer pacer = new Pacer(rate);
+        ClientSessionFactory sf = broker.injectionSessionFactory();
+        try {
+            ClientSession session = sf.createSession(true, true);
+            ClientProducer producer = session.createProducer(address);
+            pacer.reset();
+            for (long i = 0, total = warmup + messages; i < total; i++) {
+                long slot = pacer.acquire();
+                ClientMessage msg = session.createMessage(messageType == Kind.TEXT ? Message.TEXT_TYPE : Message.BYTES_TYPE, durable);
+                if (messageType == Kind.TEXT) {
+                    msg.getBodyBuffer().writeNullableSimpleString(textBody);
+                } else {
+                    msg.getBodyBuffer().writeBytes(bytesBody);
+                }
+                msg.putStringProperty(MESSAGE_ID, new SimpleString("ID:bench-" + i));
+                for (SimpleString property : propertyNames) {
+                    msg.putStringProperty(property, property);
+                }
+                msg.putLongProperty(sendTime, slot);
+                producer.send(msg);
+            }
+            session.close();
+        } finally {
+            sf.close();
+        }
+    }
+
+    private static String join(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : values) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static String json(Object[] values) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(COLUMNS[i]).append("\": ");
+            Object value = values[i];
+            if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            } else {
+                sb.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import net.sfr.tv.jms.client.impl.listener.FileOutMessageListener;
+import net.sfr.tv.jms.client.impl.listener.LoggerMessageListener;
+import net.sfr.tv.jms.client.impl.listener.ThroughputMessageListener;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.messaging.benchmark.SyntheticMessages.Kind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message cost of the built-in JMS listeners.
+ *
+ * Run with '-prof gc' to get the allocation rate.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JmsListenerBenchmark {
+
+    public enum Sink {
+        LOGGER_FULL, LOGGER_BODY, LOGGER_PROPERTY, LOGGER_ASYNC_FULL, LOGGER_ASYNC_BODY, LOGGER_ASYNC_PROPERTY, LOGGER_TEMPLATE, LOGGER_SAMPLED, FILEOUT, THROUGHPUT
+    }
+
+    @Param({"LOGGER_FULL", "LOGGER_BODY", "LOGGER_PROPERTY", "LOGGER_ASYNC_FULL", "LOGGER_ASYNC_BODY", "LOGGER_ASYNC_PROPERTY", "LOGGER_TEMPLATE", "LOGGER_SAMPLED", "FILEOUT", "THROUGHPUT"})
+    public Sink sink;
+
+    @Param({"TEXT", "BYTES"})
+    public Kind kind;
+
+    @Param({"128", "1024", "16384"})
+    public int bodySize;
+
+    @Param({"0", "10", "50"})
+    public int propertyCount;
+
+    private MessageListener listener;
+
+    private Message msg;
+
+    private File journal;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.configureLogging();
+        System.setProperty("listener.output.property", "hq-message-id");
+        System.clearProperty("listener.output.template");
+        System.clearProperty("listener.logger.sampling");
+
+        switch (sink) {
+            case LOGGER_FULL:
+            case LOGGER_BODY:
+            case LOGGER_PROPERTY:
+                System.setProperty("listener.output.type", sink.name().substring("LOGGER_".length()));
+                System.clearProperty("listener.logger.async");
+                listener = new LoggerMessageListener();
+                break;
+            case LOGGER_ASYNC_FULL:
+            case LOGGER_ASYNC_BODY:
+            case LOGGER_ASYNC_PROPERTY:
+                // Blocking policy : Measures the sustained rate, bounded by the writer thread
+                System.setProperty("listener.output.type", sink.name().substring("LOGGER_ASYNC_".length()));
+                System.setProperty("listener.logger.async", "true");
+                listener = new LoggerMessageListener();
+                break;
+            case LOGGER_TEMPLATE:
+                System.setProperty("listener.output.template", "${JMSMessageID} ${prop:hq-message-id} ${body:200}");
+                System.clearProperty("listener.logger.async");
+                listener = new LoggerMessageListener();
+                break;
+            case LOGGER_SAMPLED:
+                // FULL output, 1 message out of 100
+                System.setProperty("listener.output.type", "FULL");
+                System.setProperty("listener.logger.sampling", "EVERY");
+                System.clearProperty("listener.logger.async");
+                listener = new LoggerMessageListener();
+                break;
+            case FILEOUT:
+                journal = BenchmarkSupport.journal();
+                listener = new FileOutMessageListener();
+                break;
+            case THROUGHPUT:
+                listener = new ThroughputMessageListener();
+                break;
+        }
+
+        msg = SyntheticMessages.jmsMessage(kind, bodySize, propertyCount);
+    }
+
+    @Benchmark
+    public void onMessage() throws Exception {
+        SyntheticMessages.rewind(msg);
+        listener.onMessage(msg);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ((MessageConsumer) listener).release();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import javax.jms.Message;
+import net.sfr.tv.jms.client.impl.listener.LatencyListener;
+import net.sfr.tv.messaging.benchmark.SyntheticMessages.Kind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message cost of the LatencyListener. Text messages only, as the emission timestamp is carried by the body.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LatencyListenerBenchmark {
+
+    @Param({"128", "1024", "16384"})
+    public int bodySize;
+
+    @Param({"0", "10", "50"})
+    public int propertyCount;
+
+    private LatencyListener listener;
+
+    private Message msg;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.configureLogging();
+        listener = new LatencyListener();
+        msg = SyntheticMessages.jmsMessage(Kind.TEXT, bodySize, propertyCount);
+    }
+
+    @Benchmark
+    public void onMessage() {
+        listener.onMessage(msg);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        listener.release();
+    }
+}
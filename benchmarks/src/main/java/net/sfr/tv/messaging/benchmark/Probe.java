@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * End-to-end measurement of a benchmark run : Counts received messages, and records their latency (microseconds),
+ * from the intended send time ('bench.nanos' long property, System.nanoTime() of the injecting JVM) to listener completion.
+ * The first 'warmup' messages are only counted.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class Probe {
+
+    /**
+     * Intended send time property.
+     */
+    public static final String SEND_TIME = "bench.nanos";
+
+    private final long warmup;
+
+    private final long total;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final Recorder recorder = new Recorder(3);
+
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    private volatile long measureStart;
+
+    private volatile long lastReceipt;
+
+    /**
+     * @param warmup Number of warmup messages
+     * @param measured Number of measured messages
+     */
+    public Probe(long warmup, long measured) {
+        this.warmup = warmup;
+        this.total = warmup + measured;
+    }
+
+    /**
+     * @param sendTime Intended send time (nanoTime), negative if unknown.
+     */
+    public void record(long sendTime) {
+        long now = System.nanoTime();
+        long count = received.incrementAndGet();
+        if (count > warmup) {
+            if (count == warmup + 1) {
+                measureStart = now;
+            }
+            if (sendTime >= 0) {
+                recorder.recordValue(Math.max(now - sendTime, 0) / 1000);
+            }
+        }
+        lastReceipt = now;
+        if (count == total) {
+            completion.countDown();
+        }
+    }
+
+    /**
+     * @param timeout ms
+     * @return true if all messages have been received in time.
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        return completion.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return Measured messages per second, from the first measured message to the last received one.
+     */
+    public double getThroughput() {
+        long measured = received.get() - warmup;
+        long elapsed = lastReceipt - measureStart;
+        return measured > 1 && elapsed > 0 ? (measured - 1) * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * @return Measured latencies, in microseconds. To be called once, at the end of the run.
+     */
+    public Histogram getLatencies() {
+        return recorder.getIntervalHistogram();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.messaging.client.api.LifecycleController;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
+import net.sfr.tv.messaging.client.impl.MetricsAware;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.MessageHandler;
+
+/**
+ * Lifecycle controller of the clients under test : Listeners, JMS or HornetQ core ones, are wrapped so that the
+ * current probe gets notified once they're done with a message.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class ProbeLifecycleController implements LifecycleController {
+
+    /**
+     * Current run probe. Clients instantiate their lifecycle controller by reflection.
+     */
+    private static volatile Probe probe;
+
+    private final List<MessageConsumer> listeners = new ArrayList<>();
+
+    public static void setProbe(Probe probe) {
+        ProbeLifecycleController.probe = probe;
+    }
+
+    @Override
+    public void initListener(Class listener) throws ResourceInitializerException {
+        try {
+            listeners.add(new ProbedListener((MessageConsumer) listener.getConstructor().newInstance(), probe));
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException ex) {
+            throw new ResourceInitializerException(ex);
+        }
+    }
+
+    @Override
+    public void run() {
+    }
+
+    @Override
+    public void release() {
+        for (MessageConsumer listener : listeners) {
+            listener.release();
+        }
+    }
+
+    @Override
+    public Collection<MessageConsumer> getListeners() {
+        return listeners;
+    }
+
+    @Override
+    @Deprecated
+    public MessageConsumer getListener(Class listenerClass) throws ResourceInitializerException {
+        return listeners.isEmpty() ? null : listeners.get(0);
+    }
+
+    /**
+     * Delegates to the listener under test, then notifies the probe.
+     */
+    private static final class ProbedListener implements MessageConsumer, MessageListener, MessageHandler, Flushable, Closeable, MetricsAware {
+
+        private static final SimpleString SEND_TIME = new SimpleString(Probe.SEND_TIME);
+
+        private final MessageConsumer target;
+
+        private final Probe probe;
+
+        private ProbedListener(MessageConsumer target, Probe probe) {
+            this.target = target;
+            this.probe = probe;
+        }
+
+        @Override
+        public void onMessage(Message msg) {
+            ((MessageListener) target).onMessage(msg);
+            long sendTime = -1;
+            try {
+                if (msg.propertyExists(Probe.SEND_TIME)) {
+                    sendTime = msg.getLongProperty(Probe.SEND_TIME);
+                }
+            } catch (JMSException ex) {
+                // Counted, not measured
+            }
+            probe.record(sendTime);
+        }
+
+        @Override
+        public void onMessage(ClientMessage msg) {
+            ((MessageHandler) target).onMessage(msg);
+            probe.record(msg.containsProperty(SEND_TIME) ? msg.getLongProperty(SEND_TIME) : -1);
+        }
+
+        @Override
+        public void setMetrics(ClientMetrics metrics) {
+            if (target instanceof MetricsAware) {
+                ((MetricsAware) target).setMetrics(metrics);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target instanceof Flushable) {
+                ((Flushable) target).flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (target instanceof Closeable) {
+                ((Closeable) target).close();
+            }
+        }
+
+        @Override
+        public void release() {
+            target.release();
+        }
+
+        @Override
+        public String toString() {
+            return target.toString();
+        }
+    }
+}
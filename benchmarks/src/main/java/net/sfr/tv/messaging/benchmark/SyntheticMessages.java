@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.benchmark;
+
+import java.nio.charset.Charset;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.core.client.impl.ClientMessageImpl;
+import org.hornetq.jms.client.HornetQBytesMessage;
+import org.hornetq.jms.client.HornetQMessage;
+import org.hornetq.jms.client.HornetQTextMessage;
+
+/**
+ * Builds detached (session-less) HornetQ messages, so that listeners can be driven without a broker.
+ *
+ * Acknowledging such a message is a no-op : only the listener's own cost is measured.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class SyntheticMessages {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Kind {
+        TEXT, BYTES
+    }
+
+    private SyntheticMessages() {
+    }
+
+    /**
+     * Message body, in the "key=value;" format produced by load generators, starting with the emission timestamp.
+     *
+     * @param size Approximative body size, in characters.
+     * @return
+     */
+    public static String body(int size) {
+        StringBuilder sb = new StringBuilder(size + 32);
+        sb.append("ts=").append(System.currentTimeMillis()).append(";");
+        int idx = 0;
+        while (sb.length() < size) {
+            sb.append("k").append(idx).append("=").append("value-").append(idx++).append(";");
+        }
+        // Never truncate the timestamp entry
+        sb.setLength(Math.max(size, sb.indexOf(";") + 1));
+        return sb.toString();
+    }
+
+    public static ClientMessage coreMessage(Kind kind, int bodySize, int propertyCount) {
+        ClientMessageImpl cm = newCoreMessage(kind, propertyCount);
+        if (kind == Kind.TEXT) {
+            // Text messages wire format, as sent by JMS clients
+            cm.getBodyBuffer().writeNullableSimpleString(new SimpleString(body(bodySize)));
+        } else {
+            cm.getBodyBuffer().writeBytes(body(bodySize).getBytes(UTF8));
+        }
+        return cm;
+    }
+
+    public static Message jmsMessage(Kind kind, int bodySize, int propertyCount) throws Exception {
+        ClientMessageImpl cm = newCoreMessage(kind, propertyCount);
+        if (kind == Kind.TEXT) {
+            // HornetQTextMessage wire format
+            cm.getBodyBuffer().writeNullableSimpleString(new SimpleString(body(bodySize)));
+        } else {
+            cm.getBodyBuffer().writeBytes(body(bodySize).getBytes(UTF8));
+        }
+
+        HornetQMessage msg = HornetQMessage.createMessage(cm, null);
+        msg.doBeforeReceive();
+        msg.setJMSMessageID("ID:" + Long.toHexString(System.nanoTime()));
+        msg.setJMSType("synthetic");
+        return msg;
+    }
+
+    private static ClientMessageImpl newCoreMessage(Kind kind, int propertyCount) {
+        ClientMessageImpl cm = new ClientMessageImpl(
+                kind == Kind.TEXT ? HornetQTextMessage.TYPE : HornetQBytesMessage.TYPE,
+                false, 0, System.currentTimeMillis(), (byte) 4, 1500);
+        cm.putStringProperty("hq-message-id", "ID:" + Long.toHexString(System.nanoTime()));
+        for (int i = 0; i < propertyCount; i++) {
+            cm.putStringProperty("prop" + i, "value-" + i);
+        }
+        return cm;
+    }
+
+    /**
+     * Make a previously consumed message readable again.
+     *
+     * @param msg
+     * @throws JMSException
+     */
+    public static void rewind(Message msg) throws JMSException {
+        if (msg instanceof BytesMessage) {
+            ((BytesMessage) msg).reset();
+        }
+    }
+
+    public static void rewind(ClientMessage msg) {
+        msg.getBodyBuffer().resetReaderIndex();
+    }
+}
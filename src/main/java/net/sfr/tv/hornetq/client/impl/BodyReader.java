@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.Message;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.utils.DataConstants;
+
+/**
+ * Per-thread core message body access, without intermediate copies : Bodies are read through a view of the
+ * message buffer, and decoded into a reusable char buffer. The message body buffer position is left untouched.
+ *
+ * Text messages (JMS TextMessage) bodies are nullable, UTF-16LE encoded strings. Other bodies are decoded as UTF-8.
+ *
+ * Returned buffers are only valid until the next call on the same thread.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+final class BodyReader {
+
+    private static final ThreadLocal<BodyReader> readers = new ThreadLocal<BodyReader>() {
+        @Override
+        protected BodyReader initialValue() {
+            return new BodyReader();
+        }
+    };
+
+    private final CharsetDecoder utf8 = newDecoder("UTF-8");
+
+    private final CharsetDecoder utf16 = newDecoder("UTF-16LE");
+
+    private CharBuffer chars = CharBuffer.allocate(4096);
+
+    /**
+     * Large messages bodies, which are streamed rather than buffered.
+     */
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+    private BodyReader() {
+    }
+
+    private static CharsetDecoder newDecoder(String charset) {
+        return Charset.forName(charset).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return The current thread reader
+     */
+    static BodyReader get() {
+        return readers.get();
+    }
+
+    /**
+     * @param msg
+     * @return The raw message body
+     */
+    ByteBuffer bytes(ClientMessage msg) {
+        HornetQBuffer body = msg.getBodyBuffer();
+        if (!msg.isLargeMessage()) {
+            return body.toByteBuffer(body.readerIndex(), body.readableBytes());
+        }
+        int length = body.readableBytes();
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(length);
+        }
+        scratch.clear();
+        scratch.limit(length);
+        body.markReaderIndex();
+        body.readBytes(scratch);
+        body.resetReaderIndex();
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * @param msg
+     * @return The decoded message body, null for null text bodies.
+     */
+    CharBuffer text(ClientMessage msg) {
+        ByteBuffer in = bytes(msg);
+        if (msg.getType() != Message.TEXT_TYPE) {
+            return decode(utf8, in);
+        }
+        if (in.remaining() < 1 + DataConstants.SIZE_INT || in.get(in.position()) == DataConstants.NULL) {
+            return null;
+        }
+        int length = in.getInt(in.position() + 1);
+        in.position(in.position() + 1 + DataConstants.SIZE_INT);
+        in.limit(Math.min(in.limit(), in.position() + length));
+        return decode(utf16, in);
+    }
+
+    private CharBuffer decode(CharsetDecoder decoder, ByteBuffer in) {
+        int capacity = (int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < capacity) {
+            chars = CharBuffer.allocate(capacity);
+        }
+        chars.clear();
+        decoder.reset();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import net.sfr.tv.messaging.client.impl.OutputTemplate;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+
+/**
+ * HornetQ core messages output template. Headers : messageID, address, type, timestamp, expiration, priority,
+ * deliveryCount, durable. JMSMessageID, JMSDestination, JMSType, JMSTimestamp, JMSExpiration and JMSPriority are
+ * accepted as aliases.
+ *
+ * Bodies are decoded straight from the message buffer. '${bodyLength}' is the encoded body size in bytes, no decoding
+ * involved.
+ *
+ * @see net.sfr.tv.messaging.client.impl.OutputTemplate
+ * @see net.sfr.tv.hornetq.client.impl.BodyReader
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class CoreOutputTemplate extends OutputTemplate<ClientMessage> {
+
+    /**
+     * 'listener.output.type' FULL output.
+     */
+    public static final String FULL = "Received message :: ID : ${messageID}, type : ${type}, tstamp : ${timestamp}"
+            + ", expiration : ${expiration}, delivery count ? ${deliveryCount}${properties}\\n${body}";
+
+    private enum Header implements Field<ClientMessage> {
+        messageID {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getMessageID());
+            }
+        },
+        address {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                append(msg.getAddress(), -1, out);
+            }
+        },
+        type {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getType());
+            }
+        },
+        timestamp {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getTimestamp());
+            }
+        },
+        expiration {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getExpiration());
+            }
+        },
+        priority {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getPriority());
+            }
+        },
+        deliveryCount {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getDeliveryCount());
+            }
+        },
+        durable {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.isDurable());
+            }
+        };
+
+        @Override
+        public abstract void write(ClientMessage msg, StringBuilder out);
+    }
+
+    /**
+     * @param pattern Template
+     * @throws IllegalArgumentException Upon unknown or malformed fields.
+     */
+    public CoreOutputTemplate(String pattern) {
+        super(pattern);
+    }
+
+    /**
+     * @param outputType 'listener.output.type' : FULL, BODY, PROPERTY
+     * @param outputProperty 'listener.output.property', PROPERTY output
+     * @return The matching template pattern
+     */
+    public static String pattern(String outputType, String outputProperty) {
+        switch (outputType) {
+            case "BODY":
+                return "${body}";
+            case "PROPERTY":
+                return "${prop:".concat(String.valueOf(outputProperty)).concat("}");
+            default:
+                return FULL;
+        }
+    }
+
+    @Override
+    protected Field<ClientMessage> header(String name) {
+        switch (name) {
+            case "JMSMessageID":
+                return Header.messageID;
+            case "JMSDestination":
+                return Header.address;
+            case "JMSType":
+                return Header.type;
+            case "JMSTimestamp":
+                return Header.timestamp;
+            case "JMSExpiration":
+                return Header.expiration;
+            case "JMSPriority":
+                return Header.priority;
+            default:
+                try {
+                    return Header.valueOf(name);
+                } catch (IllegalArgumentException ex) {
+                    return null;
+                }
+        }
+    }
+
+    /**
+     * String properties are SimpleString instances, appended without conversion.
+     */
+    private static void appendValue(Object value, StringBuilder out) {
+        if (value instanceof SimpleString) {
+            append((SimpleString) value, -1, out);
+        } else {
+            out.append(value);
+        }
+    }
+
+    @Override
+    protected Field<ClientMessage> property(String name) {
+        final SimpleString key = new SimpleString(name);
+        return new Field<ClientMessage>() {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                appendValue(msg.getObjectProperty(key), out);
+            }
+        };
+    }
+
+    @Override
+    protected Field<ClientMessage> properties() {
+        return new Field<ClientMessage>() {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                for (SimpleString name : msg.getPropertyNames()) {
+                    out.append("\n\t");
+                    append(name, -1, out);
+                    out.append(" : ");
+                    appendValue(msg.getObjectProperty(name), out);
+                }
+            }
+        };
+    }
+
+    @Override
+    protected Field<ClientMessage> body(final int maxLength) {
+        return new Field<ClientMessage>() {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                append(BodyReader.get().text(msg), maxLength, out);
+            }
+        };
+    }
+
+    @Override
+    protected Field<ClientMessage> bodyLength() {
+        return new Field<ClientMessage>() {
+            @Override
+            public void write(ClientMessage msg, StringBuilder out) {
+                out.append(msg.getBodySize());
+            }
+        };
+    }
+}
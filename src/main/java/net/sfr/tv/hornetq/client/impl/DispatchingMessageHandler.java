@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import java.io.Flushable;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
+import net.sfr.tv.messaging.client.impl.OrderedDispatcher;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.MessageHandler;
+
+/**
+ * HornetQ core key-ordered dispatch stage. Ordering key is read from the 'listener.dispatch.key' string property,
+ * default '_HQ_GROUP_ID' (JMSXGroupID).
+ *
+ * Acknowledging a message acknowledges all the previous messages delivered to the consumer : The last message
+ * of the consumer within the completed prefix of the delivery sequence gets acknowledged by its delivery thread,
+ * according to the 'listener.ack.*' policy. The handler's own msg.acknowledge() calls are no-ops.
+ *
+ * Flushable delegates (file output) get flushed before acknowledgements are sent, DUPS_OK being the default policy.
+ *
+ * @see net.sfr.tv.messaging.client.impl.OrderedDispatcher
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class DispatchingMessageHandler extends OrderedDispatcher<ClientMessage> implements MessageHandler {
+
+    private final MessageHandler delegate;
+
+    private final SimpleString keyProperty;
+
+    public DispatchingMessageHandler(MessageHandler delegate) {
+        super(delegate.getClass().getSimpleName(), delegate instanceof Flushable
+                ? new HqCoreAcknowledger(Acknowledger.Mode.DUPS_OK, (Flushable) delegate)
+                : new HqCoreAcknowledger(), false);
+        this.delegate = delegate;
+        this.keyProperty = new SimpleString(System.getProperty("listener.dispatch.key", "_HQ_GROUP_ID"));
+    }
+
+    @Override
+    public void onMessage(ClientMessage msg) {
+        dispatch(msg);
+    }
+
+    @Override
+    protected String key(ClientMessage msg) {
+        return msg.containsProperty(keyProperty) ? msg.getStringProperty(keyProperty) : null;
+    }
+
+    @Override
+    protected void process(ClientMessage msg) {
+        delegate.onMessage(withoutAcknowledge(msg));
+    }
+}
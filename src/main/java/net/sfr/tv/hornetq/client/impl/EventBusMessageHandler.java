@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import net.sfr.tv.messaging.client.impl.EventBusConsumerImpl;
+import org.apache.log4j.Logger;
+import java.nio.CharBuffer;
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.Message;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.MessageHandler;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Forwards HornetQ core messages to a Vert.x event bus address. Messages are acknowledged once replied to, in delivery
+ * order per consumer.
+ *
+ * @see net.sfr.tv.messaging.client.impl.EventBusConsumerImpl
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class EventBusMessageHandler extends EventBusConsumerImpl<ClientMessage> implements MessageHandler {
+
+    private static final Logger logger = Logger.getLogger(EventBusMessageHandler.class);
+
+    public EventBusMessageHandler() {
+        super(new HqCoreAcknowledger(), false);
+    }
+
+    @Override
+    public void onMessage(ClientMessage msg) {
+        try {
+            JsonObject json = new JsonObject();
+            json.putString("messageId", String.valueOf(msg.getMessageID()));
+            json.putString("destination", String.valueOf(msg.getAddress()));
+            json.putNumber("timestamp", msg.getTimestamp());
+
+            JsonObject properties = new JsonObject();
+            Object value;
+            for (SimpleString name : msg.getPropertyNames()) {
+                value = msg.getObjectProperty(name);
+                if (value instanceof Number) {
+                    properties.putNumber(name.toString(), (Number) value);
+                } else if (value instanceof Boolean) {
+                    properties.putBoolean(name.toString(), (Boolean) value);
+                } else {
+                    properties.putString(name.toString(), value != null ? value.toString() : null);
+                }
+            }
+            json.putObject("properties", properties);
+
+            HornetQBuffer body = msg.getBodyBuffer();
+            if (msg.getType() == Message.TEXT_TYPE) {
+                CharBuffer text = BodyReader.get().text(msg);
+                json.putString("body", text != null ? text.toString() : null);
+            } else {
+                byte[] bytes = new byte[body.readableBytes()];
+                body.readBytes(bytes);
+                json.putBinary("body", bytes);
+            }
+
+            send(json, msg);
+        } catch (RuntimeException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+}
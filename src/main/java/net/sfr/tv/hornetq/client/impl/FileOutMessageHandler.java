@@ -15,51 +15,96 @@
  */
 package net.sfr.tv.hornetq.client.impl;
 
-import java.nio.ByteBuffer;
-import javax.jms.TextMessage;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
 import net.sfr.tv.messaging.client.impl.FileOutConsumerImpl;
+import org.hornetq.api.core.Message;
+import org.hornetq.api.core.SimpleString;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.MessageHandler;
 
 /**
+ * Journals HornetQ core messages. Bodies are written straight from the message buffer : Text bodies get
+ * UTF-8 encoded, other bodies are copied. Both are escaped, see FileOutConsumerImpl.
+ *
+ * @see net.sfr.tv.messaging.client.impl.FileOutConsumerImpl
+ * @see net.sfr.tv.hornetq.client.impl.BodyReader
  *
  * @author matthieu.chaplin@sfr.com
  */
 public class FileOutMessageHandler extends FileOutConsumerImpl implements MessageHandler {
 
+    private static final SimpleString MESSAGE_ID = new SimpleString("hq-message-id");
+
+    /**
+     * Messages get acknowledged once written to file : DUPS_OK, unless 'listener.ack.mode' is set.
+     */
+    private final HqCoreAcknowledger acknowledger = new HqCoreAcknowledger(Acknowledger.Mode.DUPS_OK, this);
+
+    private final SimpleString[] propertyNames;
+
     public FileOutMessageHandler() throws Exception {
         super();
+        propertyNames = new SimpleString[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            propertyNames[i] = new SimpleString(properties[i]);
+        }
     }
     
     @Override
     public void release() {
+        acknowledger.release();
         super.release();
     }
     
     @Override
     public void onMessage(ClientMessage msg) {
         
-        ByteBuffer bb;
-        String body;
-        
         try {
 
-            body = "hq-message-id=" + msg.getStringProperty("hq-message-id") + ";";
-            
-            if (TextMessage.class.isAssignableFrom(msg.getClass())) {
-                body += ((TextMessage) msg).getText();
-                //body += System.lineSeparator();
-                body += "\n";
-                bb = ByteBuffer.wrap(body.getBytes());
-                
-                out.writeDirect(bb, false);
+            synchronized (this) {
+                try {
+                    write("hq-message-id=");
+                    writeProperty(msg.getObjectProperty(MESSAGE_ID));
+                    write((byte) ';');
+                    if (timestamps) {
+                        writeTimestamp(msg.getTimestamp());
+                    }
+                    for (int i = 0; i < propertyNames.length; i++) {
+                        write(properties[i]);
+                        write((byte) '=');
+                        writeProperty(msg.getObjectProperty(propertyNames[i]));
+                        write((byte) ';');
+                    }
+
+                    if (msg.getType() == Message.TEXT_TYPE) {
+                        writeEscaped(BodyReader.get().text(msg));
+                    } else {
+                        writeEscaped(BodyReader.get().bytes(msg));
+                    }
+
+                    endRecord();
+                } catch (Exception ex) {
+                    abortRecord();
+                    throw ex;
+                }
             }
 
-            // ACK the message to remove it from the queue.
-            msg.acknowledge();
+            // ACK the message to remove it from the queue, once written.
+            acknowledger.acknowledge(msg);
 
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * String properties are SimpleString instances, written without conversion.
+     */
+    private void writeProperty(Object value) throws Exception {
+        if (value instanceof CharSequence) {
+            writeEscaped((CharSequence) value);
+        } else {
+            writeEscaped(String.valueOf(value));
+        }
+    }
+}
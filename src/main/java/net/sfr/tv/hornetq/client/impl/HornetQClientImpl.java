@@ -15,14 +15,16 @@
  */
 package net.sfr.tv.hornetq.client.impl;
 
-import java.util.TreeMap;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import net.sfr.tv.exceptions.ResourceInitializerException;
 import net.sfr.tv.hornetq.HqCoreConnectionManager;
 import net.sfr.tv.messaging.api.connection.ConsumerConnectionManager;
 import net.sfr.tv.messaging.api.MessageConsumer;
-import net.sfr.tv.messaging.api.SubscriptionDescriptor;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
 import net.sfr.tv.messaging.client.impl.MessagingClientImpl;
+import net.sfr.tv.messaging.client.impl.OrderedDispatcher;
 import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
 import org.apache.log4j.Logger;
 import org.hornetq.api.core.client.MessageHandler;
@@ -35,6 +37,9 @@ public class HornetQClientImpl extends MessagingClientImpl {
 
     private static final Logger logger = Logger.getLogger(HornetQClientImpl.class);
     
+    /**
+     * Durable topic subscriptions, with default consumer settings.
+     */
     public HornetQClientImpl(
             MessagingProvidersConfiguration msgingProviderConfig, 
             String preferredServer, 
@@ -44,41 +49,96 @@ public class HornetQClientImpl extends MessagingClientImpl {
             Class listenerClass, 
             String[] destinations) throws ResourceInitializerException {
         
-        super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations);
+        this(msgingProviderConfig, preferredServer, Boolean.TRUE, Boolean.TRUE, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations, 1);
+    }
+    
+    /**
+     * Constructor. Consumers are tuned through {@link HqCoreConsumerConnectionManager} system properties. Queue and non
+     * durable topic subscriptions require tuned consumers, durable topic subscriptions are made otherwise.
+     *
+     * @param msgingProviderConfig References available servers & associated credentials.
+     * @param preferredServer Preferred server alias.
+     * @param isTopicSubscription Topic subscription flag
+     * @param isDurableSubscription Durable subscription flag
+     * @param subscriptionBaseName Subscription name prefix
+     * @param selector Filter
+     * @param lifecycleControllerClass LifecycleController class
+     * @param listenerClass Listener class
+     * @param destinations Destinations to bind to : queues, or topic addresses
+     * @param concurrency Number of consumers per queue, per group
+     * @throws net.sfr.tv.exceptions.ResourceInitializerException
+     */
+    public HornetQClientImpl(
+            MessagingProvidersConfiguration msgingProviderConfig, 
+            String preferredServer, 
+            Boolean isTopicSubscription,
+            Boolean isDurableSubscription,
+            String subscriptionBaseName, 
+            String selector, 
+            Class lifecycleControllerClass, 
+            Class listenerClass, 
+            String[] destinations,
+            int concurrency) throws ResourceInitializerException {
+        
+        super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations, effectiveConcurrency(isTopicSubscription, concurrency));
+        
+        // The jalco connection manager only handles durable topic subscriptions
+        boolean tuned = HqCoreConsumerConnectionManager.isEnabled();
+        if (!tuned && (!isTopicSubscription || !isDurableSubscription)) {
+            logger.warn("Queue and non durable subscriptions require consumers tuning ('hq.consumer.profile'...), falling back to durable topic subscriptions.");
+        }
         
-        // Connect and Subscribe listeners to destinations
-        cnxManagers = new TreeMap<>();
+        // Connect and Subscribe listeners to destinations, concurrently across groups and listeners
+        Map<String, Callable<ConsumerConnectionManager>> tasks = new LinkedHashMap<>();
         for (String group : msgingProviderConfig.getGroups()) {
-            try {
-                for (MessageConsumer listener : lifecycleController.getListeners()) {
-                    ConsumerConnectionManager cnxManager = new HqCoreConnectionManager(group, msgingProviderConfig.getCredentials(), msgingProviderConfig.getServersGroup(group), preferredServer, (MessageHandler) listener);
-                    cnxManager.connect(2, TimeUnit.SECONDS);
-                    logger.info("Connection created for ".concat(listener.getClass().getName()));
-
-                    String subscriptionName;
-                    int subscriptionIdx = 0;
-                    for (String dest : destinations) {
-                        subscriptionName = subscriptionBaseName.concat("@").concat(dest).concat(destinations.length > 1 ? "-" + subscriptionIdx++ : "");
-                        // FIXME : Handle topic/durable subscription booleans
-                        cnxManager.subscribe(new SubscriptionDescriptor(dest, true, true, subscriptionName, selector), 2, TimeUnit.SECONDS);
-                        if (logger.isInfoEnabled() || logger.isDebugEnabled()) {
-                            logger.info("\tDestination : ".concat(dest));
-                            logger.info("\tSubscription base name : ".concat(subscriptionBaseName));
-                            logger.info("\tFilter : ".concat(selector != null ? selector : ""));
-                            logger.info("\tServers groups : ".concat(String.valueOf(msgingProviderConfig.getGroups().size())));
-                        }
-                    }
-                    cnxManagers.put("clientId-unset", cnxManager);
+            int idxListener = 0;
+            for (MessageConsumer listener : lifecycleController.getListeners()) {
+                MessageHandler target = (MessageHandler) listener;
+                if (OrderedDispatcher.isEnabled()) {
+                    DispatchingMessageHandler dispatcher = new DispatchingMessageHandler(target);
+                    dispatchers.add(dispatcher);
+                    target = dispatcher;
+                }
+                if (ClientMetrics.isEnabled()) {
+                    target = new MeteringMessageHandler(metrics, group, listener.getClass().getSimpleName(), target);
+                }
+                ConsumerConnectionManager cnxManager;
+                if (tuned) {
+                    cnxManager = new HqCoreConsumerConnectionManager(group, msgingProviderConfig.getCredentials(), msgingProviderConfig.getServersGroup(group), preferredServer, target);
+                    tasks.put(group.concat(":").concat(String.valueOf(idxListener++)), subscriptionTask(cnxManager, listener.getClass().getName(), destinations, isTopicSubscription, isDurableSubscription, subscriptionBaseName, selector));
+                } else {
+                    cnxManager = new HqCoreConnectionManager(group, msgingProviderConfig.getCredentials(), msgingProviderConfig.getServersGroup(group), preferredServer, target);
+                    tasks.put(group.concat(":").concat(String.valueOf(idxListener++)), subscriptionTask(cnxManager, listener.getClass().getName(), destinations, true, true, subscriptionBaseName, selector));
                 }
-            } catch (Exception ex) {
-                logger.error("Unable to start a listener/context binded to : ".concat(group), ex);
             }
         }
-        
+        if (logger.isInfoEnabled() || logger.isDebugEnabled()) {
+            logger.info("\tSubscription base name : ".concat(subscriptionBaseName));
+            logger.info("\tServers groups : ".concat(String.valueOf(msgingProviderConfig.getGroups().size())));
+        }
+        connect(tasks);
     }
     
+    private static int effectiveConcurrency(Boolean isTopicSubscription, int concurrency) {
+        if (isTopicSubscription && concurrency > 1) {
+            logger.warn("Concurrent consumers only apply to queues, ignoring concurrency : ".concat(String.valueOf(concurrency)));
+            return 1;
+        }
+        return concurrency;
+    }
+    
+    /**
+     * Client shutdown : Buffered output and pending acknowledgements are flushed, then sessions closed and listeners released.
+     */
     @Override
     public void shutdown() {
-        logger.warn("shutdown() : Not implemented yet !");
+
+        flushListeners();
+        closeConnections();
+        releaseDispatchers();
+        if (lifecycleController != null) {
+            lifecycleController.release();
+        }
+        logger.info("Bye !");
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import java.io.Flushable;
+import java.lang.reflect.Field;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
+import org.hornetq.api.core.HornetQException;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.ClientSession;
+
+/**
+ * HornetQ core acknowledgement policy. Acknowledging a message acknowledges all the messages previously delivered
+ * to the same consumer, and is itself buffered by the session up to its ack batch size. Messages channel is their consumer,
+ * whose session gets stopped upon flush.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class HqCoreAcknowledger extends Acknowledger<ClientMessage> {
+
+    /**
+     * ClientMessageImpl consumer.
+     */
+    private static final ClassValue<Field> consumers = fieldLookup("consumer");
+
+    /**
+     * ClientConsumerImpl session.
+     */
+    private static final ClassValue<Field> sessions = fieldLookup("session");
+
+    public HqCoreAcknowledger() {
+        super();
+    }
+
+    public HqCoreAcknowledger(Mode defaultMode, Flushable output) {
+        super(defaultMode, output);
+    }
+
+    public HqCoreAcknowledger(Mode mode, int batchSize, long batchTimeout) {
+        super(mode, batchSize, batchTimeout);
+    }
+
+    public HqCoreAcknowledger(Mode mode, int batchSize, long batchTimeout, Flushable output) {
+        super(mode, batchSize, batchTimeout, output);
+    }
+
+    @Override
+    public Object channel(ClientMessage msg) {
+        return channelOf(consumers, msg);
+    }
+
+    @Override
+    protected void stop(Object channel) throws Exception {
+        Object session = channelOf(sessions, channel);
+        if (session instanceof ClientSession) {
+            ((ClientSession) session).stop();
+        }
+    }
+
+    @Override
+    protected void acknowledgeMessage(ClientMessage msg) throws HornetQException {
+        msg.acknowledge();
+    }
+}
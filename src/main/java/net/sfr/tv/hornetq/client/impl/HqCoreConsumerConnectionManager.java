@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import net.sfr.tv.messaging.api.SubscriptionDescriptor;
+import net.sfr.tv.messaging.api.connection.ConsumerConnectionManager;
+import net.sfr.tv.messaging.client.impl.FlightRecorder;
+import net.sfr.tv.messaging.impl.MessagingServer;
+import net.sfr.tv.messaging.impl.ServersGroup;
+import net.sfr.tv.model.Credentials;
+import org.apache.log4j.Logger;
+import org.hornetq.api.core.HornetQException;
+import org.hornetq.api.core.HornetQQueueExistsException;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.core.client.ClientConsumer;
+import org.hornetq.api.core.client.ClientSession;
+import org.hornetq.api.core.client.ClientSessionFactory;
+import org.hornetq.api.core.client.FailoverEventListener;
+import org.hornetq.api.core.client.FailoverEventType;
+import org.hornetq.api.core.client.HornetQClient;
+import org.hornetq.api.core.client.MessageHandler;
+import org.hornetq.api.core.client.ServerLocator;
+
+/**
+ * HornetQ core connection manager, with tunable consumers : One connection and session, to the preferred server or the
+ * first available one of a servers group, one consumer per subscription. Sessions survive connection failures,
+ * reconnecting to the same server.
+ *
+ * Subscriptions :
+ * <ul>
+ *  <li> Queue : Consumes the destination queue, e.g. 'jms.queue.orders'.
+ *  <li> Durable topic subscription : Consumes a durable queue, named after the subscription, bound to the destination
+ * address (e.g. 'jms.topic.orders'). Created if missing.
+ *  <li> Non durable topic subscription : Consumes a temporary queue, bound to the destination address, deleted along with
+ * the session. No journal I/O on the server.
+ * </ul>
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'hq.consumer.profile' : Presets for the following settings. LATENCY, small window (64KB) and acknowledgements
+ * sent right away ; THROUGHPUT, large window (4MB) and acknowledgements sent per 1MB. Default none, HornetQ defaults.
+ *  <li> 'hq.consumer.window.size' : Client side buffer, per consumer, in bytes. 0 disables buffering (slow consumers),
+ * -1 is unbounded. HornetQ default 1MB.
+ *  <li> 'hq.ack.batch.size' : Acknowledgements are sent to the server once they amount to this many bytes of messages.
+ * HornetQ default 1MB.
+ *  <li> 'hq.pre.ack' : Messages are acknowledged by the server before delivery, they're lost upon client failure. Default false.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class HqCoreConsumerConnectionManager implements ConsumerConnectionManager {
+
+    private static final Logger logger = Logger.getLogger(HqCoreConsumerConnectionManager.class);
+
+    public enum Profile {
+        LATENCY(64 * 1024, 0),
+        THROUGHPUT(4 * 1024 * 1024, 1024 * 1024);
+
+        private final int windowSize;
+
+        private final int ackBatchSize;
+
+        private Profile(int windowSize, int ackBatchSize) {
+            this.windowSize = windowSize;
+            this.ackBatchSize = ackBatchSize;
+        }
+    }
+
+    private final String group;
+
+    private final Credentials credentials;
+
+    private final TransportConfiguration[] connectors;
+
+    private final MessageHandler handler;
+
+    private final int windowSize;
+
+    private final int ackBatchSize;
+
+    private final boolean preAcknowledge;
+
+    private ServerLocator locator;
+
+    private ClientSessionFactory sessionFactory;
+
+    private ClientSession session;
+
+    private final List<ClientConsumer> consumers = new ArrayList<>();
+
+    /**
+     * @return true if consumers tuning is configured.
+     */
+    public static boolean isEnabled() {
+        return System.getProperty("hq.consumer.profile") != null
+                || System.getProperty("hq.consumer.window.size") != null
+                || System.getProperty("hq.ack.batch.size") != null
+                || System.getProperty("hq.pre.ack") != null;
+    }
+
+    /**
+     * @param group Servers group name
+     * @param credentials Credentials, may be null
+     * @param servers Servers group
+     * @param preferredServer Preferred server alias
+     * @param handler Message handler
+     */
+    public HqCoreConsumerConnectionManager(String group, Credentials credentials, ServersGroup servers, String preferredServer, MessageHandler handler) {
+        this.group = group;
+        this.credentials = credentials;
+        this.connectors = connectors(servers, preferredServer);
+        this.handler = handler;
+
+        String profileName = System.getProperty("hq.consumer.profile");
+        Profile profile = profileName != null ? Profile.valueOf(profileName.toUpperCase()) : null;
+        windowSize = Integer.getInteger("hq.consumer.window.size", profile != null ? profile.windowSize : HornetQClient.DEFAULT_CONSUMER_WINDOW_SIZE);
+        ackBatchSize = Integer.getInteger("hq.ack.batch.size", profile != null ? profile.ackBatchSize : HornetQClient.DEFAULT_ACK_BATCH_SIZE);
+        preAcknowledge = Boolean.parseBoolean(System.getProperty("hq.pre.ack", "false"));
+    }
+
+    /**
+     * @return The group servers Netty connectors, preferred server first.
+     */
+    private static TransportConfiguration[] connectors(ServersGroup servers, String preferredServer) {
+        Map<String, TransportConfiguration> byAlias = new TreeMap<>();
+        for (Map.Entry<String, MessagingServer> server : servers.getServers().entrySet()) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("host", server.getValue().getHost());
+            params.put("port", server.getValue().getPort());
+            byAlias.put(server.getKey(), new TransportConfiguration("org.hornetq.core.remoting.impl.netty.NettyConnectorFactory", params));
+        }
+        List<TransportConfiguration> result = new ArrayList<>();
+        if (preferredServer != null && byAlias.containsKey(preferredServer)) {
+            result.add(byAlias.remove(preferredServer));
+        }
+        result.addAll(byAlias.values());
+        return result.toArray(new TransportConfiguration[result.size()]);
+    }
+
+    @Override
+    public void connect(long timeout, TimeUnit unit) throws Exception {
+        if (connectors.length == 0) {
+            throw new IllegalStateException("No server configured in group ".concat(group));
+        }
+        locator = HornetQClient.createServerLocatorWithoutHA(connectors);
+        locator.setCallTimeout(unit.toMillis(timeout));
+        locator.setReconnectAttempts(-1);
+        locator.setConsumerWindowSize(windowSize);
+        locator.setAckBatchSize(ackBatchSize);
+        locator.setPreAcknowledge(preAcknowledge);
+        try {
+            sessionFactory = locator.createSessionFactory();
+            sessionFactory.addFailoverListener(new FailoverEventListener() {
+                private Object event;
+
+                @Override
+                public void failoverEvent(FailoverEventType eventType) {
+                    if (eventType == FailoverEventType.FAILURE_DETECTED) {
+                        event = FlightRecorder.begin(FlightRecorder.EventType.RECONNECT);
+                    } else if (event != null) {
+                        FlightRecorder.commit(event, group, eventType.name());
+                        event = null;
+                    }
+                }
+            });
+            session = sessionFactory.createSession(
+                    credentials != null ? credentials.getLogin() : null,
+                    credentials != null ? credentials.getPassword() : null,
+                    false, true, true, preAcknowledge, ackBatchSize);
+        } catch (Exception ex) {
+            disconnect();
+            throw ex;
+        }
+        logger.info("Connected to group ".concat(group).concat(" :: window : ").concat(String.valueOf(windowSize))
+                .concat(", ack batch : ").concat(String.valueOf(ackBatchSize)).concat(", pre-ack : ").concat(String.valueOf(preAcknowledge)));
+    }
+
+    /**
+     * Server calls are bounded by the connection call timeout, set upon connect().
+     *
+     * @param descriptor Destination (queue name, or topic address), subscription name and flags, filter (may be null or empty)
+     * @param timeout Unused
+     * @param unit Unused
+     * @throws HornetQException
+     */
+    @Override
+    public synchronized void subscribe(SubscriptionDescriptor descriptor, long timeout, TimeUnit unit) throws HornetQException {
+        String destination = descriptor.getDestination();
+        String selector = descriptor.getSelector();
+        SimpleString filter = selector != null && selector.trim().length() > 0 ? new SimpleString(selector.trim()) : null;
+        ClientConsumer consumer;
+        if (!descriptor.isTopicSubscription()) {
+            consumer = session.createConsumer(new SimpleString(destination), filter, windowSize, -1, false);
+        } else {
+            String subscriptionName = descriptor.getSubscriptionName();
+            SimpleString queue;
+            if (descriptor.isDurableSubscription()) {
+                queue = new SimpleString(subscriptionName);
+                if (!session.queueQuery(queue).isExists()) {
+                    try {
+                        session.createQueue(new SimpleString(destination), queue, filter, true);
+                    } catch (HornetQQueueExistsException ex) {
+                        // Concurrently created
+                    }
+                }
+            } else {
+                queue = new SimpleString(subscriptionName.concat("-").concat(UUID.randomUUID().toString()));
+                session.createTemporaryQueue(new SimpleString(destination), queue, filter);
+            }
+            consumer = session.createConsumer(queue, null, windowSize, -1, false);
+        }
+        consumer.setMessageHandler(handler);
+        consumers.add(consumer);
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        session.start();
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        for (ClientConsumer consumer : consumers) {
+            try {
+                consumer.close();
+            } catch (HornetQException ex) {
+                logger.debug("Unable to close consumer", ex);
+            }
+        }
+        consumers.clear();
+        if (session != null) {
+            try {
+                session.close();
+            } catch (HornetQException ex) {
+                logger.debug("Unable to close session", ex);
+            }
+            session = null;
+        }
+        if (sessionFactory != null) {
+            sessionFactory.close();
+            sessionFactory = null;
+        }
+        if (locator != null) {
+            locator.close();
+            locator = null;
+        }
+    }
+}
@@ -15,31 +15,47 @@
  */
 package net.sfr.tv.hornetq.client.impl;
 
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import net.sfr.tv.messaging.client.impl.LoggerConsumerImpl;
-import org.hornetq.api.core.HornetQException;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.MessageHandler;
 
 /**
+ * Logs HornetQ core messages. Bodies are decoded straight from the message buffer.
+ *
+ * @see net.sfr.tv.hornetq.client.impl.BodyReader
  *
  * @author matthieu.chaplin@sfr.com
  */
 public class LoggerMessageHandler extends LoggerConsumerImpl implements MessageHandler {
 
+    private final HqCoreAcknowledger acknowledger = new HqCoreAcknowledger();
+
+    /**
+     * Null unless templated output.
+     */
+    private final CoreOutputTemplate template = isTemplated()
+            ? new CoreOutputTemplate(outputTemplate != null ? outputTemplate : CoreOutputTemplate.pattern(output.name(), outputProperty))
+            : null;
+
     @Override
     public void onMessage(ClientMessage msg) {
 
-        logger.debug("onMessage(" + msg.toString() + ")");
+        if (logger.isDebugEnabled()) {
+            logger.debug("onMessage(" + msg.toString() + ")");
+        }
         
         try {
 
-            if (outputType.equals("FULL")) {
+            if (template != null) {
+                output(template, msg);
+                acknowledger.acknowledge(msg);
+                return;
+            }
+
+            if (output == OutputType.FULL) {
                 logger.info("Received message :: ID : "
                         .concat(String.valueOf(msg.getMessageID()))
                         .concat(", type : ").concat(String.valueOf(msg.getType()))
@@ -57,35 +73,35 @@ public class LoggerMessageHandler extends LoggerConsumerImpl implements MessageH
                 }
             }
 
-            if (!outputType.equals("PROPERTY")) {
-                logger.debug("Message body size : " + msg.getBodySize() + ", readable bytes : " + msg.getBodyBuffer().readableBytes());
-                ByteBuffer bb = ByteBuffer.allocate(msg.getBodyBuffer().readableBytes());
-                msg.getBodyBuffer().readBytes(bb);
-                
-                try {
-                    logger.info(new String(bb.array(), "UTF-8"));
-                } catch (UnsupportedEncodingException ex) {
-                    Logger.getLogger(LoggerMessageHandler.class.getName()).log(Level.SEVERE, null, ex);
+            if (output != OutputType.PROPERTY && logger.isInfoEnabled()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Message body size : " + msg.getBodySize() + ", readable bytes : " + msg.getBodyBuffer().readableBytes());
                 }
-
+                CharBuffer body = BodyReader.get().text(msg);
+                logger.info(body != null ? body.toString() : "null");
             }
 
-            if (outputType.equals("PROPERTY")) {
+            if (output == OutputType.PROPERTY) {
                 logger.info(msg.getStringProperty(outputProperty));
             }
 
             // ACK the message to remove it from the queue.
-            msg.acknowledge();
+            acknowledger.acknowledge(msg);
 
-        } catch (HornetQException ex) {
+        } catch (RuntimeException ex) {
             if (IllegalStateException.class.isAssignableFrom(ex.getClass())) {
                 // Connection failure, try failover ?
 
             }
             logger.error(ex.getMessage(), ex);
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
         }
     }
 
     @Override
-    public void release() {}
+    public void release() {
+        super.release();
+        acknowledger.release();
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.hornetq.client.impl;
+
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
+import net.sfr.tv.messaging.client.impl.MeteredConsumer;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.MessageHandler;
+
+/**
+ * HornetQ core metering stage.
+ *
+ * @see net.sfr.tv.messaging.client.impl.MeteredConsumer
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class MeteringMessageHandler extends MeteredConsumer<ClientMessage> implements MessageHandler {
+
+    private final MessageHandler delegate;
+
+    public MeteringMessageHandler(ClientMetrics metrics, String group, String name, MessageHandler delegate) {
+        super(metrics, group, name);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onMessage(ClientMessage msg) {
+        meter(msg);
+    }
+
+    @Override
+    protected Object destination(ClientMessage msg) {
+        return msg.getAddress();
+    }
+
+    @Override
+    protected String destinationName(Object destination) {
+        return ((SimpleString) destination).toString();
+    }
+
+    @Override
+    protected long size(ClientMessage msg) {
+        return msg.getBodySize();
+    }
+
+    @Override
+    protected void process(ClientMessage msg) {
+        delegate.onMessage(msg);
+    }
+}
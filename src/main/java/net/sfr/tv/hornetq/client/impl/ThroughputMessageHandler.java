@@ -16,8 +16,6 @@
 package net.sfr.tv.hornetq.client.impl;
 
 import net.sfr.tv.messaging.client.impl.ThroughputConsumerImpl;
-import org.apache.log4j.Logger;
-import org.hornetq.api.core.HornetQException;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.MessageHandler;
 
@@ -27,13 +25,17 @@ import org.hornetq.api.core.client.MessageHandler;
  */
 public class ThroughputMessageHandler extends ThroughputConsumerImpl implements MessageHandler {
     
-    private static final Logger logger = Logger.getLogger(ThroughputMessageHandler.class.getName());
+    private final HqCoreAcknowledger acknowledger = new HqCoreAcknowledger();
 
     @Override
     public void onMessage(ClientMessage cm) {
         messagesMeter.mark();
-        try { cm.acknowledge(); } catch (HornetQException e) {logger.error(cm, e);};
+        acknowledger.acknowledge(cm);
     }
     
-    
+    @Override
+    public void release() {
+        acknowledger.release();
+        super.release();
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import java.io.Flushable;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
+import net.sfr.tv.messaging.client.impl.OrderedDispatcher;
+
+/**
+ * JMS key-ordered dispatch stage. Ordering key is read from the 'listener.dispatch.key' string property,
+ * default 'JMSXGroupID'.
+ *
+ * Acknowledging a message acknowledges the whole session : Messages are acknowledged by the delivery thread,
+ * once all the messages dispatched from its session have been processed. The listener's own msg.acknowledge() calls are
+ * no-ops.
+ *
+ * Flushable delegates (file output) get flushed before acknowledgements are sent.
+ *
+ * @see net.sfr.tv.messaging.client.impl.OrderedDispatcher
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class DispatchingMessageListener extends OrderedDispatcher<Message> implements MessageListener {
+
+    private final MessageListener delegate;
+
+    private final String keyProperty;
+
+    public DispatchingMessageListener(MessageListener delegate) {
+        super(delegate.getClass().getSimpleName(), new JmsAcknowledger(Acknowledger.Mode.IMMEDIATE, 1, 0,
+                delegate instanceof Flushable ? (Flushable) delegate : null), true);
+        this.delegate = delegate;
+        this.keyProperty = System.getProperty("listener.dispatch.key", "JMSXGroupID");
+    }
+
+    @Override
+    public void onMessage(Message msg) {
+        dispatch(msg);
+    }
+
+    @Override
+    protected String key(Message msg) {
+        try {
+            return msg.getStringProperty(keyProperty);
+        } catch (JMSException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void process(Message msg) {
+        delegate.onMessage(withoutAcknowledge(msg));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import java.io.Flushable;
+import java.lang.reflect.Field;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
+import org.hornetq.api.core.client.ClientSession;
+
+/**
+ * JMS acknowledgement policy. In CLIENT_ACKNOWLEDGE mode, acknowledging a message acknowledges all the messages
+ * consumed by the session : HornetQ messages channel is their (core) session, stopped upon flush. Other providers
+ * messages get acknowledged immediately, whatever the mode.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class JmsAcknowledger extends Acknowledger<Message> {
+
+    /**
+     * HornetQMessage session.
+     */
+    private static final ClassValue<Field> sessions = fieldLookup("session");
+
+    public JmsAcknowledger() {
+        super();
+    }
+
+    public JmsAcknowledger(Mode defaultMode, Flushable output) {
+        super(defaultMode, output);
+    }
+
+    public JmsAcknowledger(Mode mode, int batchSize, long batchTimeout) {
+        super(mode, batchSize, batchTimeout);
+    }
+
+    public JmsAcknowledger(Mode mode, int batchSize, long batchTimeout, Flushable output) {
+        super(mode, batchSize, batchTimeout, output);
+    }
+
+    @Override
+    public Object channel(Message msg) {
+        return channelOf(sessions, msg);
+    }
+
+    @Override
+    protected void stop(Object channel) throws Exception {
+        if (channel instanceof ClientSession) {
+            ((ClientSession) channel).stop();
+        }
+    }
+
+    @Override
+    protected void acknowledgeMessage(Message msg) throws JMSException {
+        msg.acknowledge();
+    }
+}
@@ -14,15 +14,16 @@ package net.sfr.tv.jms.client.impl;
 
 import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
 import net.sfr.tv.messaging.api.MessageConsumer;
-import java.util.TreeMap;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.jms.MessageListener;
 import net.sfr.tv.exceptions.ResourceInitializerException;
 import net.sfr.tv.jms.cnxmgt.JmsConsumerConnectionManager;
-import net.sfr.tv.messaging.api.connection.ConnectionManager;
 import net.sfr.tv.messaging.api.connection.ConsumerConnectionManager;
-import net.sfr.tv.messaging.api.SubscriptionDescriptor;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
 import net.sfr.tv.messaging.client.impl.MessagingClientImpl;
+import net.sfr.tv.messaging.client.impl.OrderedDispatcher;
 import org.apache.log4j.Logger;
 
 /**
@@ -65,42 +66,76 @@ public class JmsClientImpl extends MessagingClientImpl {
             String[] destinations,
             String cnxFactoryJndiName) throws ResourceInitializerException {
         
-        super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations);
+        this(msgingProviderConfig, preferredServer, isTopicSubscription, isDurableSubscription, clientId, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations, cnxFactoryJndiName, 1);
+    }
 
-        // Connect and Subscribe listeners to destinations
-        cnxManagers = new TreeMap<>();
-        int idxListener = 0;
-        for (String group : msgingProviderConfig.getGroups()) {
-            try {
-                for (MessageConsumer listener : lifecycleController.getListeners()) {
-                    if (lifecycleController.getListeners().size() > 1) {
-                        clientId = clientId.concat("/" + idxListener++);
-                    }
-                    ConsumerConnectionManager cnxManager = new JmsConsumerConnectionManager(group, msgingProviderConfig.getServersGroup(group), preferredServer, clientId, cnxFactoryJndiName, msgingProviderConfig.getCredentials(), (MessageListener) listener);
-                    // FIXME : After a max number of tryout, round-robin to another server.
-                    cnxManager.connect(2, TimeUnit.SECONDS);
-                    logger.info("Connection created for ".concat(listener.getClass().getName()));
+    /**
+     * Constructor.
+     *
+     * @param msgingProviderConfig References available JNDI servers & associated credentials.
+     * @param preferredServer Preferred server alias.
+     * @param isTopicSubscription Topic subscription flag
+     * @param isDurableSubscription Durable subscription flag
+     * @param clientId JMS client ID
+     * @param subscriptionBaseName JMS subscription name prefix
+     * @param selector JMS selector
+     * @param lifecycleControllerClass LifecycleController class
+     * @param listenerClass name of the JMS Listener class
+     * @param destinations JNDI destinations to bind to
+     * @param cnxFactoryJndiName JMS connection factory JNDI name
+     * @param concurrency Number of concurrent consumers (connection, session and listener instance) per destination.
+     *  Queues only : every topic subscriber would get its own copy of the messages.
+     * @throws net.sfr.tv.exceptions.ResourceInitializerException
+     */
+    public JmsClientImpl(
+            MessagingProvidersConfiguration msgingProviderConfig,
+            String preferredServer,
+            Boolean isTopicSubscription,
+            Boolean isDurableSubscription,
+            String clientId,
+            String subscriptionBaseName,
+            String selector,
+            Class lifecycleControllerClass,
+            Class listenerClass,
+            String[] destinations,
+            String cnxFactoryJndiName,
+            int concurrency) throws ResourceInitializerException {
+        
+        super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations, effectiveConcurrency(isTopicSubscription, concurrency));
 
-                    String subscriptionName;
-                    int subscriptionIdx = 0;
-                    for (String dest : destinations) {
-                        subscriptionName = subscriptionBaseName.concat("@").concat(dest).concat(destinations.length > 1 ? "-" + subscriptionIdx++ : "");
-                        cnxManager.subscribe(new SubscriptionDescriptor(dest, isTopicSubscription, isDurableSubscription, subscriptionName, selector), 2, TimeUnit.SECONDS);
-                        if (logger.isInfoEnabled() || logger.isDebugEnabled()) {
-                            logger.info("Destination : ".concat(dest));
-                            logger.info("ClientID : ".concat(clientId));
-                            logger.info("Subscription base name : ".concat(subscriptionBaseName));
-                            logger.info("Durable subscription ? ".concat(String.valueOf(isDurableSubscription)));
-                            logger.info("Filter : ".concat(selector != null ? selector : ""));
-                            logger.info("Servers groups : ".concat(String.valueOf(msgingProviderConfig.getGroups().size())));
-                        }
-                    }
-                    cnxManagers.put(clientId, cnxManager);
+        // Connect and Subscribe listeners to destinations, concurrently across groups and listeners
+        Map<String, Callable<ConsumerConnectionManager>> tasks = new LinkedHashMap<>();
+        for (String group : msgingProviderConfig.getGroups()) {
+            int idxListener = 0;
+            for (MessageConsumer listener : lifecycleController.getListeners()) {
+                String listenerClientId = lifecycleController.getListeners().size() > 1 ? clientId.concat("/" + idxListener++) : clientId;
+                MessageListener target = (MessageListener) listener;
+                if (OrderedDispatcher.isEnabled()) {
+                    DispatchingMessageListener dispatcher = new DispatchingMessageListener(target);
+                    dispatchers.add(dispatcher);
+                    target = dispatcher;
                 }
-            } catch (Exception ex) {
-                logger.error("Unable to start a listener/context binded to : ".concat(group), ex);
+                if (ClientMetrics.isEnabled()) {
+                    target = new MeteringMessageListener(metrics, group, listener.getClass().getSimpleName(), target);
+                }
+                // FIXME : After a max number of tryout, round-robin to another server.
+                ConsumerConnectionManager cnxManager = new JmsConsumerConnectionManager(group, msgingProviderConfig.getServersGroup(group), preferredServer, listenerClientId, cnxFactoryJndiName, msgingProviderConfig.getCredentials(), target);
+                tasks.put(group.concat(":").concat(listenerClientId), subscriptionTask(cnxManager, listener.getClass().getName().concat(" (").concat(listenerClientId).concat(")"), destinations, isTopicSubscription, isDurableSubscription, subscriptionBaseName, selector));
             }
         }
+        if (logger.isInfoEnabled() || logger.isDebugEnabled()) {
+            logger.info("Subscription base name : ".concat(subscriptionBaseName));
+            logger.info("Servers groups : ".concat(String.valueOf(msgingProviderConfig.getGroups().size())));
+        }
+        connect(tasks);
+    }
+
+    private static int effectiveConcurrency(Boolean isTopicSubscription, int concurrency) {
+        if (isTopicSubscription && concurrency > 1) {
+            logger.warn("Concurrent consumers only apply to queues, ignoring concurrency : ".concat(String.valueOf(concurrency)));
+            return 1;
+        }
+        return concurrency;
     }
 
     /**
@@ -124,6 +159,7 @@ public class JmsClientImpl extends MessagingClientImpl {
 
     /**
      * Client shutdown : Sequential closure of JMS and user specific resources.
+     * Buffered output and pending acknowledgements are flushed before connections get closed.
      *
      * User-specific resources must be released in
      *
@@ -132,9 +168,9 @@ public class JmsClientImpl extends MessagingClientImpl {
     @Override
     public void shutdown() {
 
-        for (ConnectionManager cnxManager : cnxManagers.values()) {
-            cnxManager.disconnect();
-        }
+        flushListeners();
+        closeConnections();
+        releaseDispatchers();
         if (lifecycleController != null) {
             lifecycleController.release();
         }
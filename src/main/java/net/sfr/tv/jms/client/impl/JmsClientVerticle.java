@@ -15,25 +15,175 @@
  */
 package net.sfr.tv.jms.client.impl;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.hornetq.client.impl.EventBusMessageHandler;
+import net.sfr.tv.hornetq.client.impl.HornetQClientImpl;
+import net.sfr.tv.jms.client.impl.listener.EventBusMessageListener;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.messaging.client.impl.EventBusConsumerImpl;
+import net.sfr.tv.messaging.client.impl.LifecycleControllerImpl;
+import net.sfr.tv.messaging.client.impl.MessagingClientImpl;
+import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Future;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Verticle;
 
 /**
+ * Vert.x 2 verticle : Starts a JMS (or HornetQ core) client, and forwards received messages to the event bus,
+ * with credit based flow control.
+ *
+ * Verticle configuration :
+ * <ul>
+ *  <li> protocol : 'jms' (default), or 'hornetq'.
+ *  <li> destinations : Array of destinations (JNDI names, or core queues), or comma separated string. Mandatory.
+ *  <li> subscription : Subscription name. Default 'jalam-vertx'.
+ *  <li> clientId : JMS client ID, suffixed with the verticle instance index. Default jalam-vertx@[hostname].
+ *  <li> topic, durable : Subscription flags. Default false : Queue consumers, spreading load across instances.
+ *  <li> selector, preferredServer, connectionFactory : As on the command line.
+ *  <li> concurrency : JMS, number of consumers per destination and instance. Default 1.
+ *  <li> address : Event bus address. Default 'jalam.messages'.
+ *  <li> credits : Max. number of messages awaiting a reply, per consumer. Default 1000.
+ *  <li> replyTimeout : Reply timeout (ms), after which the message is sent again. Default 30000. Messages are acknowledged once
+ * replied to.
+ *  <li> messaging : messaging.properties entries, as a JSON object. Otherwise read from [configPath]/messaging.properties,
+ * configPath defaulting to the 'config.path' system property.
+ * </ul>
+ *
+ * Deploy several instances to spread load across event loops : Each one gets its own connections.
+ *
+ * @see net.sfr.tv.messaging.client.impl.EventBusConsumerImpl
  *
  * @author matthieu
  */
 public class JmsClientVerticle extends Verticle {
 
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private MessagingClientImpl client;
+
     @Override
-    public void stop() {
-        super.stop(); //To change body of generated methods, choose Tools | Templates.
+    public void start(final Future<Void> startedResult) {
+        final JsonObject config = container.config();
+        final int instance = instances.getAndIncrement();
+        final Context context = vertx.currentContext();
+
+        // Connecting blocks : Keep it off the event loop
+        Thread starter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final MessagingClientImpl started = createClient(config, instance);
+                    for (MessageConsumer listener : started.getListeners()) {
+                        ((EventBusConsumerImpl) listener).bind(vertx, context,
+                                config.getString("address", "jalam.messages"),
+                                config.getInteger("credits", 1000),
+                                config.getLong("replyTimeout", 30000L));
+                    }
+                    started.start();
+                    context.runOnContext(new Handler<Void>() {
+                        @Override
+                        public void handle(Void event) {
+                            client = started;
+                            startedResult.setResult(null);
+                        }
+                    });
+                } catch (final Exception ex) {
+                    context.runOnContext(new Handler<Void>() {
+                        @Override
+                        public void handle(Void event) {
+                            container.logger().error("Unable to start the messaging client", ex);
+                            startedResult.setFailure(ex);
+                        }
+                    });
+                }
+            }
+        }, "jalam-verticle-starter-" + instance);
+        starter.setDaemon(true);
+        starter.start();
     }
 
     @Override
-    public void start() {
-        // TODO : Alan : Injecter config, new JmsClient(), etc...
-        super.start(); //To change body of generated methods, choose Tools | Templates.
+    public void stop() {
+        if (client == null) {
+            return;
+        }
+        final MessagingClientImpl stopped = client;
+        client = null;
+        // Shutting down blocks, waiting for replies which are handled on the event loop : Keep it off the event loop
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopped.shutdown();
+            }
+        }, "jalam-verticle-stopper");
+        stopper.start();
+    }
+
+    private MessagingClientImpl createClient(JsonObject config, int instance) throws IOException, ResourceInitializerException {
+
+        Properties messagingProps = new Properties();
+        JsonObject messaging = config.getObject("messaging");
+        if (messaging != null) {
+            for (String key : messaging.getFieldNames()) {
+                messagingProps.setProperty(key, String.valueOf(messaging.getValue(key)));
+            }
+        } else {
+            String configurationFilePath = config.getString("configPath", System.getProperty("config.path", "/")).concat("/").concat("messaging.properties");
+            InputStream is = JmsClientVerticle.class.getResourceAsStream(configurationFilePath);
+            try {
+                messagingProps.load(is != null ? is : (is = new FileInputStream(configurationFilePath)));
+            } finally {
+                if (is != null) {
+                    is.close();
+                }
+            }
+        }
+        MessagingProvidersConfiguration messagingProvidersConfig = new MessagingProvidersConfiguration(messagingProps, null);
+
+        String[] destinations;
+        Object value = config.getValue("destinations");
+        if (value instanceof JsonArray) {
+            JsonArray array = (JsonArray) value;
+            destinations = new String[array.size()];
+            for (int i = 0; i < destinations.length; i++) {
+                destinations[i] = String.valueOf(array.get(i));
+            }
+        } else if (value != null) {
+            destinations = value.toString().split("\\,");
+        } else {
+            throw new ResourceInitializerException("No 'destinations' in verticle configuration", null);
+        }
+
+        String subscriptionName = config.getString("subscription", "jalam-vertx");
+        String selector = config.getString("selector", "");
+        String preferredServer = config.getString("preferredServer", null);
+
+        if ("hornetq".equalsIgnoreCase(config.getString("protocol", "jms"))) {
+            return new HornetQClientImpl(messagingProvidersConfig, preferredServer, subscriptionName, selector, LifecycleControllerImpl.class, EventBusMessageHandler.class, destinations);
+        } else {
+            String clientId = config.getString("clientId", "jalam-vertx@".concat(InetAddress.getLocalHost().getHostName().replaceAll("\\.", "-")));
+            return new JmsClientImpl(
+                    messagingProvidersConfig,
+                    preferredServer,
+                    config.getBoolean("topic", false),
+                    config.getBoolean("durable", false),
+                    clientId.concat("/v" + instance),
+                    subscriptionName,
+                    selector,
+                    LifecycleControllerImpl.class,
+                    EventBusMessageListener.class,
+                    destinations,
+                    config.getString("connectionFactory", "PreAckConsumerConnectionFactory"),
+                    config.getInteger("concurrency", 1));
+        }
     }
-    
-    
-    
 }
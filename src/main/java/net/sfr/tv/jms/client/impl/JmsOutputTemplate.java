@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Enumeration;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import net.sfr.tv.messaging.client.impl.OutputTemplate;
+
+/**
+ * JMS messages output template. Headers : JMSMessageID, JMSCorrelationID, JMSType, JMSTimestamp, JMSExpiration,
+ * JMSDeliveryMode, JMSPriority, JMSRedelivered, JMSDestination. Unset JMSMessageID and JMSType print as '(?)'.
+ *
+ * Properties are read as strings, as objects if not convertible. Additional field '${sizedBody}' : '[length] : body'
+ * for text and bytes messages, 'null' otherwise, as the FULL output.
+ *
+ * Bytes message bodies are decoded with the platform charset.
+ *
+ * @see net.sfr.tv.messaging.client.impl.OutputTemplate
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class JmsOutputTemplate extends OutputTemplate<Message> {
+
+    /**
+     * 'listener.output.type' FULL output.
+     */
+    public static final String FULL = "Received message :: ID : ${JMSMessageID}, type : ${JMSType}, tstamp : ${JMSTimestamp}"
+            + ", expiration : ${JMSExpiration}, delivery mode ? ${JMSDeliveryMode}, redelivery ? ${JMSRedelivered}"
+            + "${properties}\\n${sizedBody}";
+
+    /**
+     * Bytes message bodies decoding buffers, per thread.
+     */
+    private static final ThreadLocal<BytesDecoder> decoders = new ThreadLocal<BytesDecoder>() {
+        @Override
+        protected BytesDecoder initialValue() {
+            return new BytesDecoder();
+        }
+    };
+
+    private enum Header implements Field<Message> {
+        JMSMessageID {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                String id = msg.getJMSMessageID();
+                out.append(id != null ? id : "(?)");
+            }
+        },
+        JMSCorrelationID {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSCorrelationID());
+            }
+        },
+        JMSType {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                String type = msg.getJMSType();
+                out.append(type != null ? type : "(?)");
+            }
+        },
+        JMSTimestamp {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSTimestamp());
+            }
+        },
+        JMSExpiration {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSExpiration());
+            }
+        },
+        JMSDeliveryMode {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSDeliveryMode());
+            }
+        },
+        JMSPriority {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSPriority());
+            }
+        },
+        JMSRedelivered {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSRedelivered());
+            }
+        },
+        JMSDestination {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getJMSDestination());
+            }
+        };
+
+        @Override
+        public abstract void write(Message msg, StringBuilder out) throws JMSException;
+    }
+
+    /**
+     * @param pattern Template
+     * @throws IllegalArgumentException Upon unknown or malformed fields.
+     */
+    public JmsOutputTemplate(String pattern) {
+        super(pattern);
+    }
+
+    /**
+     * @param outputType 'listener.output.type' : FULL, BODY, PROPERTY
+     * @param outputProperty 'listener.output.property', PROPERTY output
+     * @return The matching template pattern
+     */
+    public static String pattern(String outputType, String outputProperty) {
+        switch (outputType) {
+            case "BODY":
+                return "${body}";
+            case "PROPERTY":
+                return "${prop:".concat(String.valueOf(outputProperty)).concat("}");
+            default:
+                return FULL;
+        }
+    }
+
+    @Override
+    protected Field<Message> header(String name) {
+        if (name.equals("sizedBody")) {
+            return sizedBody();
+        }
+        try {
+            return Header.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Field<Message> property(final String name) {
+        return new Field<Message>() {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                out.append(msg.getStringProperty(name));
+            }
+        };
+    }
+
+    @Override
+    protected Field<Message> properties() {
+        return new Field<Message>() {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                Enumeration names = msg.getPropertyNames();
+                String name;
+                int mark;
+                while (names.hasMoreElements()) {
+                    name = (String) names.nextElement();
+                    mark = out.length();
+                    out.append("\n\t").append(name).append(" : ");
+                    try {
+                        out.append(msg.getStringProperty(name));
+                    } catch (JMSException ex) {
+                        try {
+                            out.append(msg.getObjectProperty(name));
+                        } catch (JMSException ex2) {
+                            // Unreadable value, skip the property
+                            out.setLength(mark);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    protected Field<Message> body(final int maxLength) {
+        return new Field<Message>() {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                if (msg instanceof TextMessage) {
+                    append(((TextMessage) msg).getText(), maxLength, out);
+                } else if (msg instanceof BytesMessage) {
+                    decoders.get().append((BytesMessage) msg, maxLength, out);
+                } else {
+                    out.append("null");
+                }
+            }
+        };
+    }
+
+    @Override
+    protected Field<Message> bodyLength() {
+        return new Field<Message>() {
+            @Override
+            public void write(Message msg, StringBuilder out) throws JMSException {
+                if (msg instanceof TextMessage) {
+                    String text = ((TextMessage) msg).getText();
+                    out.append(text != null ? text.length() : 0);
+                } else if (msg instanceof BytesMessage) {
+                    out.append(((BytesMessage) msg).getBodyLength());
+                } else {
+                    out.append(0);
+                }
+            }
+        };
+    }
+
+    private Field<Message> sizedBody() {
+        final Field<Message> length = bodyLength();
+        final Field<Message> body = body(-1);
+        return new Field<Message>() {
+            @Override
+            public void write(Message msg, StringBuilder out) throws Exception {
+                if (msg instanceof TextMessage || msg instanceof BytesMessage) {
+                    out.append('[');
+                    length.write(msg, out);
+                    out.append("] : ");
+                    body.write(msg, out);
+                } else {
+                    out.append("null");
+                }
+            }
+        };
+    }
+
+    /**
+     * Reusable buffers, decoding with the platform charset like new String(byte[]). The message is reset before being
+     * read, so that several body fields may be used.
+     */
+    private static final class BytesDecoder {
+
+        private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private ByteBuffer bytes = ByteBuffer.allocate(8192);
+
+        private CharBuffer chars = CharBuffer.allocate(8192);
+
+        private void append(BytesMessage msg, int maxLength, StringBuilder out) throws JMSException {
+            msg.reset();
+            int length = (int) msg.getBodyLength();
+            if (maxLength >= 0) {
+                // Enough bytes for maxLength characters
+                length = (int) Math.min(length, (long) Math.ceil(maxLength * (double) decoder.maxCharsPerByte() * 4));
+            }
+            if (bytes.capacity() < length) {
+                bytes = ByteBuffer.allocate(length);
+            }
+            int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+            if (chars.capacity() < maxChars) {
+                chars = CharBuffer.allocate(maxChars);
+            }
+            bytes.clear();
+            bytes.limit(Math.max(msg.readBytes(bytes.array(), length), 0));
+            chars.clear();
+            decoder.reset();
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            OutputTemplate.append(chars, maxLength, out);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.messaging.client.api.MessagingClient;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
+import net.sfr.tv.messaging.client.impl.Pacer;
+import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
+import org.apache.log4j.Logger;
+
+/**
+ * Producer client, for load generation. Every servers group gets its own connection, to the preferred server or
+ * the first available one : Its JNDI provider ('[group].jms.server.[alias].host' and '.port' entries) provides
+ * the connection factory and destination. Producer threads, each one with its own session, are spread across groups.
+ *
+ * Messages bodies start with 'ts=[emission timestamp];seq=[sequence number];', as parsed by the latency listener,
+ * padded up to the payload size. The emission timestamp is also set as the 'ts' long property.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'producer.threads' : Number of producer threads and sessions. Default 1.
+ *  <li> 'producer.mode' : SYNC (default), one send at a time ; BATCH, transacted sessions committed every
+ * 'producer.batch.size' messages (default 100), sends being asynchronous in between.
+ *  <li> 'producer.persistent' : Persistent delivery. Default true. Non persistent messages are sent asynchronously.
+ *  <li> 'producer.rate' : Total rate, in messages per second. Default 0, open loop.
+ *  <li> 'producer.messages' : Number of messages to send. Default 0, until shutdown.
+ *  <li> 'producer.duration' : Max. duration, in ms. Default 0, until shutdown.
+ *  <li> 'producer.message.type' : TEXT (default), BYTES.
+ *  <li> 'producer.payload.size' : Body size, in bytes. Default 1024.
+ *  <li> 'producer.properties' : Number of string properties to set per message ('p0', 'p1', ...). Default 0.
+ *  <li> 'producer.user', 'producer.password' : Optional credentials.
+ *  <li> 'producer.jndi.factory' : JNDI initial context factory. Default 'org.jnp.interfaces.NamingContextFactory'.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class JmsProducerClientImpl implements MessagingClient {
+
+    private static final Logger logger = Logger.getLogger(JmsProducerClientImpl.class);
+
+    public enum SendMode {
+        SYNC, BATCH
+    }
+
+    public enum MessageType {
+        TEXT, BYTES
+    }
+
+    private final List<Connection> connections = new ArrayList<>();
+
+    /**
+     * Destinations, by connection
+     */
+    private final List<Destination> destinations = new ArrayList<>();
+
+    private final int threads;
+
+    private final SendMode mode;
+
+    private final int batchSize;
+
+    private final boolean persistent;
+
+    private final long maxMessages;
+
+    private final long duration;
+
+    private final MessageType messageType;
+
+    private final int payloadSize;
+
+    private final int propertyCount;
+
+    private final Pacer pacer;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    protected final ClientMetrics metrics = new ClientMetrics();
+
+    private final Meter sent;
+
+    private final Timer sendTimer;
+
+    private final Counter errors;
+
+    private final List<Thread> producers = new ArrayList<>();
+
+    private final CountDownLatch completion;
+
+    private volatile boolean running = true;
+
+    private long startTime;
+
+    /**
+     * Constructor.
+     *
+     * @param msgingProviderConfig Servers groups
+     * @param msgingProperties Messaging configuration, JNDI servers are read from
+     * @param preferredServer Preferred server alias
+     * @param destination Destination JNDI name
+     * @param cnxFactoryJndiName JMS connection factory JNDI name
+     * @throws ResourceInitializerException No group is available
+     */
+    public JmsProducerClientImpl(
+            MessagingProvidersConfiguration msgingProviderConfig,
+            Properties msgingProperties,
+            String preferredServer,
+            String destination,
+            String cnxFactoryJndiName) throws ResourceInitializerException {
+
+        threads = Math.max(Integer.getInteger("producer.threads", 1), 1);
+        mode = SendMode.valueOf(System.getProperty("producer.mode", SendMode.SYNC.name()).toUpperCase());
+        batchSize = Math.max(Integer.getInteger("producer.batch.size", 100), 1);
+        persistent = Boolean.parseBoolean(System.getProperty("producer.persistent", "true"));
+        maxMessages = Long.getLong("producer.messages", 0L);
+        duration = Long.getLong("producer.duration", 0L);
+        messageType = MessageType.valueOf(System.getProperty("producer.message.type", MessageType.TEXT.name()).toUpperCase());
+        payloadSize = Math.max(Integer.getInteger("producer.payload.size", 1024), 0);
+        propertyCount = Math.max(Integer.getInteger("producer.properties", 0), 0);
+        pacer = new Pacer(Double.parseDouble(System.getProperty("producer.rate", "0")));
+
+        sent = metrics.getRegistry().meter("producer.messages");
+        sendTimer = metrics.getRegistry().timer("producer.send");
+        errors = metrics.getRegistry().counter("producer.errors");
+        metrics.requestReporting();
+
+        for (String group : msgingProviderConfig.getGroups()) {
+            connect(group, jndiServers(msgingProperties, group, preferredServer), destination, cnxFactoryJndiName);
+        }
+        if (connections.isEmpty()) {
+            throw new ResourceInitializerException("Unable to connect to any servers group", null);
+        }
+        completion = new CountDownLatch(threads);
+
+        logger.info("Producer :: destination : ".concat(destination)
+                .concat(", groups : ").concat(String.valueOf(connections.size()))
+                .concat(", threads : ").concat(String.valueOf(threads))
+                .concat(", mode : ").concat(mode.name()).concat(mode == SendMode.BATCH ? " (" + batchSize + ")" : "")
+                .concat(", persistent : ").concat(String.valueOf(persistent))
+                .concat(", rate : ").concat(System.getProperty("producer.rate", "0"))
+                .concat(", payload : ").concat(messageType.name()).concat(" ").concat(String.valueOf(payloadSize)).concat(" bytes")
+                .concat(", properties : ").concat(String.valueOf(propertyCount)));
+    }
+
+    /**
+     * @return The group JNDI provider URLs, preferred server first.
+     */
+    private static List<String> jndiServers(Properties props, String group, String preferredServer) {
+        String prefix = group.concat(".jms.server.");
+        Map<String, String> urls = new TreeMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix) && key.endsWith(".host")) {
+                String alias = key.substring(prefix.length(), key.length() - ".host".length());
+                urls.put(alias, "jnp://".concat(props.getProperty(key).trim()).concat(":").concat(props.getProperty(prefix.concat(alias).concat(".port"), "1099").trim()));
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (preferredServer != null && urls.containsKey(preferredServer)) {
+            result.add(urls.remove(preferredServer));
+        }
+        result.addAll(urls.values());
+        return result;
+    }
+
+    private void connect(String group, List<String> providerUrls, String destination, String cnxFactoryJndiName) {
+        for (String url : providerUrls) {
+            Properties env = new Properties();
+            env.put(Context.INITIAL_CONTEXT_FACTORY, System.getProperty("producer.jndi.factory", "org.jnp.interfaces.NamingContextFactory"));
+            env.put(Context.URL_PKG_PREFIXES, "org.jboss.naming:org.jnp.interfaces");
+            env.put(Context.PROVIDER_URL, url);
+            InitialContext ctx = null;
+            try {
+                ctx = new InitialContext(env);
+                ConnectionFactory cf = (ConnectionFactory) ctx.lookup(cnxFactoryJndiName);
+                Destination dest = (Destination) ctx.lookup(destination);
+                String user = System.getProperty("producer.user");
+                Connection cnx = user != null ? cf.createConnection(user, System.getProperty("producer.password")) : cf.createConnection();
+                connections.add(cnx);
+                destinations.add(dest);
+                logger.info("Connection created for group ".concat(group).concat(" : ").concat(url));
+                return;
+            } catch (NamingException | JMSException ex) {
+                logger.warn("Unable to connect to ".concat(url).concat(" : ").concat(String.valueOf(ex.getMessage())));
+            } finally {
+                if (ctx != null) {
+                    try {
+                        ctx.close();
+                    } catch (NamingException ex) {
+                        logger.debug("Unable to close JNDI context", ex);
+                    }
+                }
+            }
+        }
+        logger.error("No server available in group ".concat(group));
+    }
+
+    @Override
+    public synchronized void start() throws ResourceInitializerException {
+        metrics.start();
+        pacer.reset();
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(new ProducerTask(i % connections.size()), "jalam-producer-" + i);
+            producer.setDaemon(true);
+            producers.add(producer);
+            producer.start();
+        }
+    }
+
+    /**
+     * Wait for all the messages to be sent.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitCompletion() throws InterruptedException {
+        completion.await();
+    }
+
+    /**
+     * Build the next message. Overridable, for other payloads.
+     *
+     * @param session Producer session
+     * @param seq Message sequence number
+     * @param timestamp Intended emission time, epoch in ms
+     * @param scratch Producer thread buffer, of the payload size
+     * @return The message, or null once there is none left to send.
+     * @throws JMSException
+     */
+    protected Message createMessage(Session session, long seq, long timestamp, byte[] scratch) throws JMSException {
+        // Body header, then padding
+        int len = 0;
+        len = put(scratch, len, "ts=");
+        len = put(scratch, len, String.valueOf(timestamp));
+        len = put(scratch, len, ";seq=");
+        len = put(scratch, len, String.valueOf(seq));
+        len = put(scratch, len, ";");
+        len = Math.max(len, payloadSize);
+
+        Message msg;
+        if (messageType == MessageType.BYTES) {
+            BytesMessage bm = session.createBytesMessage();
+            bm.writeBytes(scratch, 0, len);
+            msg = bm;
+        } else {
+            msg = session.createTextMessage(new String(scratch, 0, len, StandardCharsets.US_ASCII));
+        }
+        msg.setLongProperty("ts", timestamp);
+        for (int i = 0; i < propertyCount; i++) {
+            msg.setStringProperty("p" + i, "value-" + i);
+        }
+        return msg;
+    }
+
+    private static int put(byte[] scratch, int offset, String s) {
+        int len = Math.min(s.length(), scratch.length - offset);
+        for (int i = 0; i < len; i++) {
+            scratch[offset + i] = (byte) s.charAt(i);
+        }
+        return offset + len;
+    }
+
+    /**
+     * Stop producer threads, then close connections.
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        for (Thread producer : producers) {
+            try {
+                producer.join(10000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Connection cnx : connections) {
+            try {
+                cnx.close();
+            } catch (JMSException ex) {
+                logger.warn("Unable to close connection", ex);
+            }
+        }
+        metrics.stop();
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        logger.info("Sent ".concat(String.valueOf(sent.getCount())).concat(" messages in ").concat(String.valueOf(elapsed))
+                .concat(" ms (").concat(String.valueOf(sent.getCount() * 1000 / elapsed)).concat(" msg/s), errors : ")
+                .concat(String.valueOf(errors.getCount())));
+        logger.info("Bye !");
+    }
+
+    private final class ProducerTask implements Runnable {
+
+        private final int idx;
+
+        private ProducerTask(int idx) {
+            this.idx = idx;
+        }
+
+        @Override
+        public void run() {
+            Session session = null;
+            try {
+                session = connections.get(idx).createSession(mode == SendMode.BATCH, Session.AUTO_ACKNOWLEDGE);
+                MessageProducer producer = session.createProducer(destinations.get(idx));
+                producer.setDeliveryMode(persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT);
+                producer.setDisableMessageID(true);
+
+                byte[] scratch = new byte[Math.max(payloadSize, 64)];
+                Arrays.fill(scratch, (byte) 'x');
+                long deadline = duration > 0 ? startTime + duration : Long.MAX_VALUE;
+                int pending = 0;
+                long seq;
+                Message msg;
+                while (running) {
+                    seq = sequence.getAndIncrement();
+                    if ((maxMessages > 0 && seq >= maxMessages) || System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                    long slot = pacer.acquire();
+                    msg = createMessage(session, seq, System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - slot), scratch);
+                    if (msg == null) {
+                        break;
+                    }
+
+                    long start = System.nanoTime();
+                    try {
+                        producer.send(msg);
+                        if (mode == SendMode.BATCH && ++pending >= batchSize) {
+                            session.commit();
+                            pending = 0;
+                        }
+                        sent.mark();
+                    } catch (JMSException ex) {
+                        errors.inc();
+                        logger.error("Unable to send message ".concat(String.valueOf(seq)), ex);
+                    } finally {
+                        sendTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+                if (mode == SendMode.BATCH && pending > 0) {
+                    session.commit();
+                }
+            } catch (JMSException ex) {
+                errors.inc();
+                logger.error("Producer ".concat(String.valueOf(idx)).concat(" failed"), ex);
+            } finally {
+                if (session != null) {
+                    try {
+                        session.close();
+                    } catch (JMSException ex) {
+                        logger.debug("Unable to close session", ex);
+                    }
+                }
+                completion.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.messaging.client.impl.JournalReader;
+import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
+import org.apache.log4j.Logger;
+
+/**
+ * Replays a journal written by the file output listeners/handlers ('hq-message-id=[id];[name=value;]...[body]' records),
+ * to reproduce production traffic. The journal is read sequentially, through memory-mapped windows.
+ * @see net.sfr.tv.messaging.client.impl.JournalReader
+ *
+ * Leading record fields are stripped from the body : the message ID, the timestamp and the journaled properties, which
+ * are restored as string properties. Values and bodies are unescaped. The replay time is set as the 'ts' long property.
+ *
+ * Producer settings apply (threads, mode, persistence, 'producer.messages' and 'producer.duration' limits), 'producer.rate'
+ * caps the replay rate. Records are released in order, at their scheduled time : Sends stay ordered with a single producer
+ * thread (default).
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'replay.speed' : ORIGINAL (default), the journal inter-arrival times, from 'timestamp' fields (see 'listener.file.timestamp') ;
+ * a multiplier, e.g. 10 replays ten times faster ; MAX, as fast as possible. Records without timestamp are sent right away.
+ *  <li> 'replay.properties' : Comma separated list of journaled properties. Default 'listener.file.properties'.
+ *  <li> 'replay.message.type' : TEXT (default), UTF-8 decoded bodies ; BYTES, bodies as is.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class JmsReplayClientImpl extends JmsProducerClientImpl {
+
+    private static final Logger logger = Logger.getLogger(JmsReplayClientImpl.class);
+
+    private static final String MESSAGE_ID = "hq-message-id";
+
+    private static final String TIMESTAMP = "timestamp";
+
+    private final JournalReader reader;
+
+    /**
+     * Speed multiplier, 0 for max. rate.
+     */
+    private final double speed;
+
+    private final MessageType messageType;
+
+    /**
+     * Journaled properties names.
+     */
+    private final String[] properties;
+
+    /**
+     * Journaled properties names, as bytes.
+     */
+    private final byte[][] propertyKeys;
+
+    private final byte[] messageIdKey = MESSAGE_ID.getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] timestampKey = TIMESTAMP.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Guarded by reader : First record timestamp, and replay start (nanoTime).
+     */
+    private long firstTimestamp = -1;
+
+    private long replayStart;
+
+    /**
+     * Constructor.
+     *
+     * @param msgingProviderConfig Servers groups
+     * @param msgingProperties Messaging configuration, JNDI servers are read from
+     * @param preferredServer Preferred server alias
+     * @param destination Destination JNDI name
+     * @param cnxFactoryJndiName JMS connection factory JNDI name
+     * @param journal Journal file, or MAPPED mode journal base name
+     * @throws ResourceInitializerException No group is available, or the journal can't be read
+     */
+    public JmsReplayClientImpl(
+            MessagingProvidersConfiguration msgingProviderConfig,
+            Properties msgingProperties,
+            String preferredServer,
+            String destination,
+            String cnxFactoryJndiName,
+            String journal) throws ResourceInitializerException {
+
+        super(msgingProviderConfig, msgingProperties, preferredServer, destination, cnxFactoryJndiName);
+
+        try {
+            reader = new JournalReader(new File(journal));
+        } catch (IOException ex) {
+            throw new ResourceInitializerException(ex);
+        }
+
+        String speedValue = System.getProperty("replay.speed", "ORIGINAL").trim();
+        if ("ORIGINAL".equalsIgnoreCase(speedValue)) {
+            speed = 1;
+        } else if ("MAX".equalsIgnoreCase(speedValue)) {
+            speed = 0;
+        } else {
+            speed = Math.max(Double.parseDouble(speedValue), 0);
+        }
+        messageType = MessageType.valueOf(System.getProperty("replay.message.type", MessageType.TEXT.name()).toUpperCase());
+
+        String props = System.getProperty("replay.properties", System.getProperty("listener.file.properties", "")).trim();
+        properties = props.length() > 0 ? props.split("\\s*,\\s*") : new String[0];
+        propertyKeys = new byte[properties.length][];
+        for (int i = 0; i < properties.length; i++) {
+            propertyKeys[i] = properties[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        if (Integer.getInteger("producer.threads", 1) > 1) {
+            logger.warn("Several producer threads : Replayed messages may be sent out of order.");
+        }
+        logger.info("Replaying ".concat(journal).concat(" :: speed : ").concat(speed > 0 ? "x" + speed : "MAX")
+                .concat(", properties : ").concat(String.valueOf(properties.length)));
+    }
+
+    /**
+     * Build a message from the next journal record, once due.
+     */
+    @Override
+    protected Message createMessage(Session session, long seq, long timestamp, byte[] scratch) throws JMSException {
+        String[] values = new String[properties.length];
+        ByteBuffer body;
+        long due = -1;
+        synchronized (reader) {
+            ByteBuffer record;
+            try {
+                record = reader.next();
+            } catch (IOException ex) {
+                logger.error("Unable to read the journal, stopping replay", ex);
+                return null;
+            }
+            if (record == null) {
+                return null;
+            }
+
+            // Leading fields
+            long recordTimestamp = -1;
+            int field;
+            while ((field = fieldEnd(record)) > 0) {
+                int eq = indexOf(record, record.position(), field, (byte) '=');
+                if (matches(record, eq, messageIdKey)) {
+                    // Left to the broker
+                } else if (matches(record, eq, timestampKey)) {
+                    recordTimestamp = parseLong(record, eq + 1, field);
+                } else {
+                    int idx = propertyIndex(record, eq);
+                    if (idx < 0) {
+                        // Body start
+                        break;
+                    }
+                    values[idx] = decode(record, eq + 1, field);
+                }
+                record.position(field + 1);
+            }
+            body = JournalReader.unescape(record);
+
+            // Schedule
+            if (speed > 0 && recordTimestamp >= 0) {
+                if (firstTimestamp < 0) {
+                    firstTimestamp = recordTimestamp;
+                    replayStart = System.nanoTime();
+                }
+                due = replayStart + (long) ((recordTimestamp - firstTimestamp) * 1000000L / speed);
+            }
+            long wait;
+            while (due > 0 && (wait = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(wait);
+            }
+
+            // The record is only valid until the next read
+            Message msg;
+            if (messageType == MessageType.BYTES) {
+                byte[] bytes = new byte[body.remaining()];
+                body.get(bytes);
+                BytesMessage bm = session.createBytesMessage();
+                bm.writeBytes(bytes);
+                msg = bm;
+            } else {
+                msg = session.createTextMessage(StandardCharsets.UTF_8.decode(body).toString());
+            }
+            for (int i = 0; i < properties.length; i++) {
+                if (values[i] != null) {
+                    msg.setStringProperty(properties[i], values[i]);
+                }
+            }
+            msg.setLongProperty("ts", System.currentTimeMillis());
+            return msg;
+        }
+    }
+
+    /**
+     * @return The ';' offset ending the leading 'key=value;' field, or -1 if the record doesn't start with one.
+     */
+    private static int fieldEnd(ByteBuffer record) {
+        int start = record.position();
+        int end = JournalReader.indexOfUnescaped(record, start, record.limit(), (byte) ';');
+        if (end < 0) {
+            return -1;
+        }
+        int eq = indexOf(record, start, end, (byte) '=');
+        return eq > start ? end : -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the key, ending at offset 'eq', is the expected one.
+     */
+    private static boolean matches(ByteBuffer record, int eq, byte[] key) {
+        int start = record.position();
+        if (eq - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (record.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int propertyIndex(ByteBuffer record, int eq) {
+        for (int i = 0; i < propertyKeys.length; i++) {
+            if (matches(record, eq, propertyKeys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) {
+        long value = 0;
+        byte b;
+        for (int i = from; i < to; i++) {
+            b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return to > from ? value : -1;
+    }
+
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        ByteBuffer value = buffer.duplicate();
+        value.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(JournalReader.unescape(value)).toString();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (reader != null) {
+            logger.info("Journal records read : ".concat(String.valueOf(reader.getRecords())));
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                logger.warn("Unable to close the journal", ex);
+            }
+        }
+    }
+}
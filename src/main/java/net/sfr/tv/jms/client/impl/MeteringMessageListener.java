@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
+import net.sfr.tv.messaging.client.impl.MeteredConsumer;
+
+/**
+ * JMS metering stage. Body sizes are only available for bytes messages, and approximated by the text length for text messages.
+ *
+ * @see net.sfr.tv.messaging.client.impl.MeteredConsumer
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class MeteringMessageListener extends MeteredConsumer<Message> implements MessageListener {
+
+    private final MessageListener delegate;
+
+    public MeteringMessageListener(ClientMetrics metrics, String group, String name, MessageListener delegate) {
+        super(metrics, group, name);
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onMessage(Message msg) {
+        meter(msg);
+    }
+
+    @Override
+    protected Object destination(Message msg) {
+        try {
+            return msg.getJMSDestination();
+        } catch (JMSException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    protected String destinationName(Object destination) {
+        try {
+            if (destination instanceof Queue) {
+                return ((Queue) destination).getQueueName();
+            } else if (destination instanceof Topic) {
+                return ((Topic) destination).getTopicName();
+            }
+        } catch (JMSException ex) {
+            // Fall back to the destination representation
+        }
+        return String.valueOf((Destination) destination);
+    }
+
+    @Override
+    protected long size(Message msg) {
+        try {
+            if (msg instanceof BytesMessage) {
+                return ((BytesMessage) msg).getBodyLength();
+            } else if (msg instanceof TextMessage) {
+                String text = ((TextMessage) msg).getText();
+                return text != null ? text.length() : 0;
+            }
+        } catch (JMSException ex) {
+            // Unknown
+        }
+        return -1;
+    }
+
+    @Override
+    protected void process(Message msg) {
+        delegate.onMessage(msg);
+    }
+}
@@ -15,21 +15,39 @@
  */
 package net.sfr.tv.jms.client.impl;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import javax.jms.MessageListener;
 import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.jms.cnxmgt.JmsConsumerConnectionManager;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.messaging.api.connection.ConsumerConnectionManager;
+import net.sfr.tv.messaging.client.impl.ClientMetrics;
 import net.sfr.tv.messaging.client.impl.MessagingClientImpl;
+import net.sfr.tv.messaging.client.impl.OrderedDispatcher;
 import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
+import org.apache.log4j.Logger;
 
 /**
+ * JMS client hosting several listener classes, each one bound to its own destinations.
+ *
+ * Every listener gets its own connection per servers group, with a dedicated client ID ([clientId]/[index]).
+ * Connections and subscriptions are established in parallel.
  *
  * @author matthieu.chaplin@sfr.com
  */
 public class MultiListenersJmsClientImpl extends MessagingClientImpl {
 
+    private static final Logger logger = Logger.getLogger(MultiListenersJmsClientImpl.class);
+
     /**
      * Constructor.
      *
-     * @param jndiProviderConfig References available JNDI servers & associated credentials.
+     * @param msgingProviderConfig References available JNDI servers & associated credentials.
      * @param preferredServer Preferred server alias.
      * @param isTopicSubscription Topic subscription flag
      * @param isDurableSubscription Durable subscription flag
@@ -53,17 +71,68 @@ public class MultiListenersJmsClientImpl extends MessagingClientImpl {
             Map<String[], String> destinationsByListeners,
             String cnxFactoryJndiName) throws ResourceInitializerException {
         
-        //super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations);
-        super(msgingProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, null, null);
-        // TODO
-        
+        super(lifecycleControllerClass);
+
+        Map<String, Callable<ConsumerConnectionManager>> tasks = new LinkedHashMap<>();
+        int idxListener = 0;
+        for (Map.Entry<String[], String> binding : destinationsByListeners.entrySet()) {
+            MessageConsumer listener = registerListener(binding.getValue().trim());
+            String listenerClientId = destinationsByListeners.size() > 1 ? clientId.concat("/" + idxListener++) : clientId;
+            for (String group : msgingProviderConfig.getGroups()) {
+                MessageListener target = (MessageListener) listener;
+                if (OrderedDispatcher.isEnabled()) {
+                    DispatchingMessageListener dispatcher = new DispatchingMessageListener(target);
+                    dispatchers.add(dispatcher);
+                    target = dispatcher;
+                }
+                if (ClientMetrics.isEnabled()) {
+                    target = new MeteringMessageListener(metrics, group, listener.getClass().getSimpleName(), target);
+                }
+                ConsumerConnectionManager cnxManager = new JmsConsumerConnectionManager(group, msgingProviderConfig.getServersGroup(group), preferredServer, listenerClientId, cnxFactoryJndiName, msgingProviderConfig.getCredentials(), target);
+                tasks.put(group.concat(":").concat(listenerClientId), subscriptionTask(cnxManager, listener.getClass().getName().concat(" (").concat(listenerClientId).concat(")"), binding.getKey(), isTopicSubscription, isDurableSubscription, subscriptionBaseName, selector));
+            }
+        }
+        connect(tasks);
     }
 
+    /**
+     * Instantiate a listener through the lifecycle controller.
+     *
+     * @param listenerClassName
+     * @return The new listener instance
+     * @throws ResourceInitializerException
+     */
+    private MessageConsumer registerListener(String listenerClassName) throws ResourceInitializerException {
+        Class listenerClass;
+        try {
+            listenerClass = ClassLoader.getSystemClassLoader().loadClass(listenerClassName);
+        } catch (ClassNotFoundException ex) {
+            throw new ResourceInitializerException("Class not found ! : ".concat(listenerClassName), ex);
+        }
+
+        Set<MessageConsumer> registered = Collections.newSetFromMap(new IdentityHashMap<MessageConsumer, Boolean>());
+        registered.addAll(lifecycleController.getListeners());
+        initListener(listenerClass);
+        for (MessageConsumer listener : lifecycleController.getListeners()) {
+            if (!registered.contains(listener)) {
+                return listener;
+            }
+        }
+        throw new ResourceInitializerException("No listener registered for ".concat(listenerClassName), null);
+    }
+
+    /**
+     * Client shutdown : Buffered output and pending acknowledgements are flushed, then connections closed and listeners released.
+     */
     @Override
     public void shutdown() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+
+        flushListeners();
+        closeConnections();
+        releaseDispatchers();
+        if (lifecycleController != null) {
+            lifecycleController.release();
+        }
+        logger.info("Bye !");
     }
-    
-    
-    
 }
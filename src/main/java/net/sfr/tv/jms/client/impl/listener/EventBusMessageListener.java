@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl.listener;
+
+import java.util.Enumeration;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.TextMessage;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
+import net.sfr.tv.messaging.client.impl.EventBusConsumerImpl;
+import org.apache.log4j.Logger;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Forwards JMS messages to a Vert.x event bus address. Messages are acknowledged once replied to : Acknowledging a message
+ * acknowledges the whole session, the delivery thread waits for replies every 'credits' messages.
+ *
+ * @see net.sfr.tv.messaging.client.impl.EventBusConsumerImpl
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class EventBusMessageListener extends EventBusConsumerImpl<Message> implements MessageListener {
+
+    private static final Logger logger = Logger.getLogger(EventBusMessageListener.class);
+
+    public EventBusMessageListener() {
+        super(new JmsAcknowledger(), true);
+    }
+
+    @Override
+    public void onMessage(Message msg) {
+        try {
+            JsonObject json = new JsonObject();
+            json.putString("messageId", msg.getJMSMessageID());
+            json.putString("destination", String.valueOf(msg.getJMSDestination()));
+            json.putNumber("timestamp", msg.getJMSTimestamp());
+
+            JsonObject properties = new JsonObject();
+            Enumeration names = msg.getPropertyNames();
+            String name;
+            Object value;
+            while (names.hasMoreElements()) {
+                name = (String) names.nextElement();
+                value = msg.getObjectProperty(name);
+                if (value instanceof Number) {
+                    properties.putNumber(name, (Number) value);
+                } else if (value instanceof Boolean) {
+                    properties.putBoolean(name, (Boolean) value);
+                } else {
+                    properties.putString(name, value != null ? value.toString() : null);
+                }
+            }
+            json.putObject("properties", properties);
+
+            if (msg instanceof TextMessage) {
+                json.putString("body", ((TextMessage) msg).getText());
+            } else if (msg instanceof BytesMessage) {
+                BytesMessage bytesMsg = (BytesMessage) msg;
+                byte[] body = new byte[(int) bytesMsg.getBodyLength()];
+                bytesMsg.readBytes(body);
+                json.putBinary("body", body);
+            }
+
+            send(json, msg);
+        } catch (JMSException ex) {
+            logger.error(ex.getMessage(), ex);
+        }
+    }
+}
@@ -15,11 +15,12 @@
  */
 package net.sfr.tv.jms.client.impl.listener;
 
-import java.nio.ByteBuffer;
 import javax.jms.BytesMessage;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
+import net.sfr.tv.messaging.client.impl.Acknowledger;
 import net.sfr.tv.messaging.client.impl.FileOutConsumerImpl;
 
 /**
@@ -29,42 +30,66 @@ import net.sfr.tv.messaging.client.impl.FileOutConsumerImpl;
  */
 public class FileOutMessageListener extends FileOutConsumerImpl implements MessageListener {
     
+    /**
+     * Messages get acknowledged once written to file : DUPS_OK, unless 'listener.ack.mode' is set.
+     */
+    private final JmsAcknowledger acknowledger = new JmsAcknowledger(Acknowledger.Mode.DUPS_OK, this);
+    
+    /**
+     * BytesMessage body transfer buffer.
+     */
+    private final byte[] chunk = new byte[8192];
+    
     public FileOutMessageListener() throws Exception {
         super();
     }
     
     @Override
     public void release() {
+        acknowledger.release();
         super.release();
     }
     
     @Override
     public void onMessage(Message msg) {
         
-        ByteBuffer bb;
-        String body;
-        
         try {
 
-            body = "hq-message-id=" + msg.getStringProperty("hq-message-id") + ";";
-            
-            if (TextMessage.class.isAssignableFrom(msg.getClass())) {
-                body += ((TextMessage) msg).getText();
-                //body += System.lineSeparator();
-                body += "\n";
+            synchronized (this) {
+                try {
+                    write("hq-message-id=");
+                    writeEscaped(msg.getStringProperty("hq-message-id"));
+                    write((byte) ';');
+                    if (timestamps) {
+                        writeTimestamp(msg.getJMSTimestamp());
+                    }
+                    for (String property : properties) {
+                        write(property);
+                        write((byte) '=');
+                        writeEscaped(String.valueOf(msg.getObjectProperty(property)));
+                        write((byte) ';');
+                    }
+
+                    if (TextMessage.class.isAssignableFrom(msg.getClass())) {
+                        writeEscaped(((TextMessage) msg).getText());
+
+                    } else if (BytesMessage.class.isAssignableFrom(msg.getClass())) {
+                        BytesMessage bm = (BytesMessage) msg;
+                        int read;
+                        while ((read = bm.readBytes(chunk)) > 0) {
+                            writeEscaped(chunk, 0, read);
+                        }
+                    }
 
-            } else if (BytesMessage.class.isAssignableFrom(msg.getClass())) {
-                BytesMessage bm = (BytesMessage) msg;
-                byte[] bbody = new byte[(int)bm.getBodyLength()];
-                bm.readBytes(bbody);
-                body += new String(bbody).concat("\n");
+                    endRecord();
+                } catch (Exception ex) {
+                    abortRecord();
+                    throw ex;
+                }
             }
 
-            bb = ByteBuffer.wrap(body.getBytes());
-            out.writeDirect(bb, false);
-            
-            // ACK the message to remove it from the queue.
-            msg.acknowledge();
+            // ACK the message to remove it from the queue, once written.
+            acknowledger.acknowledge(msg);
 
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
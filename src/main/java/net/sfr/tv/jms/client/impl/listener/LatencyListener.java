@@ -15,59 +15,72 @@
  */
 package net.sfr.tv.jms.client.impl.listener;
 
-import com.codahale.metrics.ConsoleReporter;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.MetricRegistry;
-import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
-import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
+import net.sfr.tv.messaging.client.impl.LatencyConsumerImpl;
 import org.apache.log4j.Logger;
 
 /**
+ * End-to-end latency listener.
+ * 
+ * @see net.sfr.tv.messaging.client.impl.LatencyConsumerImpl
  *
  * @author matthieu.chaplin@sfr.com
  */
-public class LatencyListener implements MessageListener, MessageConsumer {
+public class LatencyListener extends LatencyConsumerImpl implements MessageListener {
     
-    private static final Logger logger = Logger.getLogger(ThroughputMessageListener.class.getName());
+    private static final Logger logger = Logger.getLogger(LatencyListener.class.getName());
     
-    private static final MetricRegistry metrics = new MetricRegistry();
+    private final JmsAcknowledger acknowledger = new JmsAcknowledger();
     
-    private final Histogram histogram = metrics.histogram("Latency");
-    
-    public LatencyListener() {
-        
-        final ConsoleReporter reporter = ConsoleReporter.forRegistry(metrics)
-          .convertRatesTo(TimeUnit.SECONDS)
-          .convertDurationsTo(TimeUnit.MILLISECONDS)
-          .build();
-        reporter.start(5, TimeUnit.SECONDS);
-    }
+    /**
+     * BytesMessage body head : The timestamp is expected in there. Per thread, as listeners are shared by sessions.
+     */
+    private static final ThreadLocal<byte[]> heads = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
 
     @Override
     public void onMessage(Message msg) {
         
-        TextMessage tm = (TextMessage) msg;
-        long origStamp = 0;
         try { 
             
-            String[] keyVals = tm.getText().split("\\;");
-            for (String kv : keyVals) {
-                if (kv.startsWith("ts=")) {
-                    origStamp = Long.valueOf(kv.split("\\=")[1]);
-                }
+            switch (source) {
+                case JMS_TIMESTAMP:
+                    // 0 if the producer disabled timestamps
+                    long timestamp = msg.getJMSTimestamp();
+                    record(timestamp > 0 ? timestamp : -1);
+                    break;
+                case PROPERTY:
+                    record(msg.propertyExists(timestampProperty) ? msg.getLongProperty(timestampProperty) : -1);
+                    break;
+                default:
+                    if (TextMessage.class.isAssignableFrom(msg.getClass())) {
+                        String text = ((TextMessage) msg).getText();
+                        record(text != null ? parseTimestamp(text) : -1);
+                    } else if (BytesMessage.class.isAssignableFrom(msg.getClass())) {
+                        byte[] head = heads.get();
+                        record(parseTimestamp(head, Math.max(((BytesMessage) msg).readBytes(head), 0)));
+                    } else {
+                        record(-1);
+                    }
+                    break;
             }
             
-            histogram.update(new Date().getTime() - origStamp);
-            
-            msg.acknowledge();
+            acknowledger.acknowledge(msg);
         } catch (JMSException e) {logger.error(msg, e);};
     }
     
     @Override
-    public void release() {};
+    public void release() {
+        acknowledger.release();
+        super.release();
+    };
 }
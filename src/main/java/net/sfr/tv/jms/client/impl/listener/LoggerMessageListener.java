@@ -21,6 +21,8 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.TextMessage;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
+import net.sfr.tv.jms.client.impl.JmsOutputTemplate;
 import net.sfr.tv.messaging.client.impl.LoggerConsumerImpl;
 
 /**
@@ -29,12 +31,27 @@ import net.sfr.tv.messaging.client.impl.LoggerConsumerImpl;
  */
 public class LoggerMessageListener extends LoggerConsumerImpl implements MessageListener {
     
+    private final JmsAcknowledger acknowledger = new JmsAcknowledger();
+    
+    /**
+     * Null unless templated output.
+     */
+    private final JmsOutputTemplate template = isTemplated()
+            ? new JmsOutputTemplate(outputTemplate != null ? outputTemplate : JmsOutputTemplate.pattern(output.name(), outputProperty))
+            : null;
+    
     @Override
     public void onMessage(Message msg) {
 
         try {
 
-            if (outputType.equals("FULL")) {
+            if (template != null) {
+                output(template, msg);
+                acknowledger.acknowledge(msg);
+                return;
+            }
+
+            if (output == OutputType.FULL) {
                 logger.info("Received message :: ID : "
                         .concat(msg.getJMSMessageID() != null ? msg.getJMSMessageID() : "(?)")
                         .concat(", type : ").concat(msg.getJMSType() != null ? msg.getJMSType() : "(?)")
@@ -63,11 +80,11 @@ public class LoggerMessageListener extends LoggerConsumerImpl implements Message
                 }
             }
             
-            if (!outputType.equals("PROPERTY")) {
+            if (output != OutputType.PROPERTY) {
                 String sbody = null;
                 if (TextMessage.class.isAssignableFrom(msg.getClass())) {
                     String text = ((TextMessage) msg).getText();
-                    if (outputType.equals("FULL")) {
+                    if (output == OutputType.FULL) {
                         sbody = "[".concat(String.valueOf(text.length())).concat("] : ").concat(text);
                     } else {
                         sbody = text;
@@ -77,7 +94,7 @@ public class LoggerMessageListener extends LoggerConsumerImpl implements Message
                     byte[] body = new byte[(int)bm.getBodyLength()];
                     bm.readBytes(body);
 
-                    if (outputType.equals("FULL")) {
+                    if (output == OutputType.FULL) {
                         sbody = "[".concat(String.valueOf(body.length)).concat("] : ").concat(new String(body));
                     } else {
                         sbody = new String(body);
@@ -89,7 +106,7 @@ public class LoggerMessageListener extends LoggerConsumerImpl implements Message
             }
            
             // ACK the message to remove it from the queue.
-            msg.acknowledge();
+            acknowledger.acknowledge(msg);
             
         } catch (JMSException ex) {
             if (IllegalStateException.class.isAssignableFrom(ex.getClass())) {
@@ -97,9 +114,14 @@ public class LoggerMessageListener extends LoggerConsumerImpl implements Message
                 
             }
             logger.error(ex.getMessage(), ex);
+        } catch (Exception ex) {
+            logger.error(ex.getMessage(), ex);
         }
     }
 
     @Override
-    public void release() {}
+    public void release() {
+        super.release();
+        acknowledger.release();
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.jms.client.impl.listener;
+
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
+import net.sfr.tv.messaging.client.impl.ReactiveConsumerImpl;
+
+/**
+ * Reactive Streams Publisher of JMS messages.
+ *
+ * @see net.sfr.tv.messaging.client.impl.ReactiveConsumerImpl
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class ReactiveMessageListener extends ReactiveConsumerImpl<Message> implements MessageListener {
+
+    private final JmsAcknowledger acknowledger = new JmsAcknowledger();
+
+    @Override
+    public void onMessage(Message msg) {
+        if (publish(msg)) {
+            acknowledger.acknowledge(msg);
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        acknowledger.release();
+    }
+}
@@ -15,11 +15,10 @@
  */
 package net.sfr.tv.jms.client.impl.listener;
 
-import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
+import net.sfr.tv.jms.client.impl.JmsAcknowledger;
 import net.sfr.tv.messaging.client.impl.ThroughputConsumerImpl;
-import org.apache.log4j.Logger;
 
 /**
  *
@@ -27,7 +26,7 @@ import org.apache.log4j.Logger;
  */
 public class ThroughputMessageListener extends ThroughputConsumerImpl implements MessageListener {
     
-    private static final Logger logger = Logger.getLogger(ThroughputMessageListener.class.getName());
+    private final JmsAcknowledger acknowledger = new JmsAcknowledger();
     
     public ThroughputMessageListener() {
         super();
@@ -36,6 +35,12 @@ public class ThroughputMessageListener extends ThroughputConsumerImpl implements
     @Override
     public void onMessage(Message msg) {
         messagesMeter.mark();
-        try { msg.acknowledge(); } catch (JMSException e) {logger.error(msg, e);};
+        acknowledger.acknowledge(msg);
+    }
+    
+    @Override
+    public void release() {
+        acknowledger.release();
+        super.release();
     }
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import com.codahale.metrics.Timer;
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Acknowledgement policy of a message consumer, shared by all the sessions/consumers it is subscribed through.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.ack.mode' : IMMEDIATE (default), BATCH, DUPS_OK
+ *  <li> 'listener.ack.batch.size' : BATCH mode, acknowledge every N messages. Default 100.
+ *  <li> 'listener.ack.batch.timeout' : BATCH/DUPS_OK modes, pending messages get acknowledged along with the first message
+ * delivered this many ms after them. Default 1000.
+ * </ul>
+ *
+ * Acknowledging a message acknowledges all the messages previously consumed by the same session/consumer, its channel :
+ * Only the last received message is kept pending, per channel. Acknowledgements are sent by the thread delivering the
+ * channel messages, as sessions are not to be used concurrently : Batch timeouts are checked upon delivery, messages left
+ * pending by an idle channel get acknowledged along with its next message, or upon shutdown, once delivery on the channel
+ * got stopped. Messages whose channel is unknown are acknowledged immediately.
+ *
+ * Acknowledgers instantiated along with a client listeners are registered into the client, which flushes them upon
+ * shutdown.
+ *
+ * Consumers acknowledging messages once written get their output flushed before acknowledgements are sent.
+ *
+ * @param <T> Message type
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class Acknowledger<T> {
+
+    private static final Logger logger = Logger.getLogger(Acknowledger.class);
+
+    /**
+     * Channel of the messages not delivered through a session (e.g. built by benchmarks), acknowledging them is a no-op.
+     */
+    private static final Object DETACHED = new Object();
+
+    /**
+     * Client acknowledgers, new acknowledgers instantiated by the current thread get registered into.
+     */
+    private static final ThreadLocal<Collection<Acknowledger>> scope = new ThreadLocal<>();
+
+    /**
+     * Acknowledger in charge of the current thread acknowledgements, if any.
+     */
+    private static final ThreadLocal<Acknowledger> owner = new ThreadLocal<>();
+
+    /**
+     * Acknowledgement latency of the client the current thread works for, if metrics are enabled.
+     */
+    private static final ThreadLocal<Timer> latencyTimer = new ThreadLocal<>();
+
+    public enum Mode {
+        /** One acknowledgement per message */
+        IMMEDIATE,
+        /** Acknowledge every N messages, or along with the first message delivered T milliseconds after the batch start */
+        BATCH,
+        /** Lazy acknowledgement, along with the first message delivered T milliseconds after the previous one. Duplicates are to be expected upon failure. */
+        DUPS_OK
+    }
+
+    private final Mode mode;
+
+    private final int batchSize;
+
+    private final long batchTimeout;
+
+    private final long batchTimeoutNanos;
+
+    /**
+     * Output to write before acknowledging, if any.
+     */
+    private final Flushable output;
+
+    /**
+     * Client acknowledgers this one is registered into, if any.
+     */
+    private final Collection<Acknowledger> registry;
+
+    /**
+     * Pending acknowledgements, by channel. Guarded by this.
+     */
+    private final Map<Object, Pending<T>> pending = new HashMap<>();
+
+    public Acknowledger() {
+        this(Mode.IMMEDIATE, null);
+    }
+
+    /**
+     * Policy configured through system properties.
+     *
+     * @param defaultMode Mode, unless 'listener.ack.mode' is set.
+     * @param output Output to write before acknowledging, for consumers acknowledging messages once written. May be null.
+     */
+    public Acknowledger(Mode defaultMode, Flushable output) {
+        this(Mode.valueOf(System.getProperty("listener.ack.mode", defaultMode.name()).toUpperCase()),
+                Integer.getInteger("listener.ack.batch.size", 100),
+                Long.getLong("listener.ack.batch.timeout", 1000L),
+                output);
+    }
+
+    public Acknowledger(Mode mode, int batchSize, long batchTimeout) {
+        this(mode, batchSize, batchTimeout, null);
+    }
+
+    /**
+     * @param mode
+     * @param batchSize BATCH mode, acknowledge every N messages.
+     * @param batchTimeout BATCH/DUPS_OK modes, delay (ms) after which pending messages get acknowledged along with the next one. 0 for none.
+     * @param output Output to write before acknowledging, for consumers acknowledging messages once written. May be null.
+     */
+    public Acknowledger(Mode mode, int batchSize, long batchTimeout, Flushable output) {
+        this.mode = mode;
+        this.batchSize = batchSize > 0 ? batchSize : 1;
+        this.batchTimeout = batchTimeout;
+        this.batchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(batchTimeout);
+        this.output = output;
+        this.registry = scope.get();
+        if (registry != null) {
+            registry.add(this);
+        }
+    }
+
+    /**
+     * Acknowledge, or defer acknowledgement of, a processed message. To be called by the thread the message got delivered by.
+     *
+     * @param msg
+     */
+    public void acknowledge(T msg) {
+        Acknowledger delegate = owner.get();
+        if (delegate != null && delegate != this) {
+            return;
+        }
+
+        Object channel = mode != Mode.IMMEDIATE ? channel(msg) : null;
+        if (channel == null) {
+            if (writeOutput()) {
+                doAcknowledge(msg);
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        boolean due;
+        synchronized (this) {
+            Pending<T> entry = pending.get(channel);
+            if (entry == null) {
+                entry = new Pending<>(now);
+                pending.put(channel, entry);
+            }
+            entry.msg = msg;
+            due = (mode == Mode.BATCH && ++entry.count >= batchSize) || (batchTimeout > 0 && now - entry.since >= batchTimeoutNanos);
+            if (due) {
+                pending.remove(channel);
+            }
+        }
+        if (due && writeOutput()) {
+            doAcknowledge(msg);
+        }
+    }
+
+    /**
+     * Acknowledge pending messages, if any, whatever their channel. Upon shutdown, before closing connections : Delivery
+     * on the channels gets stopped beforehand, so that acknowledgements are sent while no message is being delivered.
+     */
+    public void flush() {
+        List<Object> channels;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            channels = new ArrayList<>(pending.keySet());
+        }
+        stopDelivery(channels);
+
+        List<T> messages;
+        synchronized (this) {
+            messages = new ArrayList<>(pending.size());
+            for (Pending<T> entry : pending.values()) {
+                messages.add(entry.msg);
+            }
+            pending.clear();
+        }
+        if (writeOutput()) {
+            for (T msg : messages) {
+                doAcknowledge(msg);
+            }
+        }
+    }
+
+    /**
+     * Flush pending acknowledgements.
+     */
+    public void release() {
+        flush();
+        if (registry != null) {
+            registry.remove(this);
+        }
+    }
+
+    /**
+     * @return false if the output could not be written : Messages are left unacknowledged, until a later acknowledgement
+     * on their channel.
+     */
+    private boolean writeOutput() {
+        if (output == null) {
+            return true;
+        }
+        try {
+            output.flush();
+            return true;
+        } catch (IOException ex) {
+            logger.error("Unable to write output, leaving messages unacknowledged", ex);
+            return false;
+        }
+    }
+
+    private void doAcknowledge(T msg) {
+        Timer timer = latencyTimer.get();
+        Object event = FlightRecorder.begin(FlightRecorder.EventType.ACKNOWLEDGE);
+        long start = timer != null ? System.nanoTime() : 0;
+        try {
+            acknowledgeMessage(msg);
+            if (timer != null) {
+                timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            if (event != null) {
+                FlightRecorder.commit(event, mode.name());
+            }
+        } catch (Exception ex) {
+            logger.error("Unable to acknowledge ".concat(String.valueOf(msg)), ex);
+        }
+    }
+
+    protected abstract void acknowledgeMessage(T msg) throws Exception;
+
+    /**
+     * @param msg
+     * @return The session/consumer the message got delivered through, whose messages get acknowledged altogether. Null if unknown.
+     */
+    public Object channel(T msg) {
+        return null;
+    }
+
+    /**
+     * Stop message delivery on a channel, waiting for the message being delivered if any. No-op by default.
+     *
+     * @param channel A channel, as returned by {@link #channel(Object)}.
+     * @throws Exception
+     */
+    protected void stop(Object channel) throws Exception {
+    }
+
+    /**
+     * Stop message delivery on channels, before acknowledging their messages from another thread than their delivery thread.
+     *
+     * @param channels
+     */
+    void stopDelivery(Collection<?> channels) {
+        for (Object channel : channels) {
+            if (channel != DETACHED) {
+                try {
+                    stop(channel);
+                } catch (Exception ex) {
+                    logger.warn("Unable to stop message delivery on ".concat(String.valueOf(channel)), ex);
+                }
+            }
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    /**
+     * Register the acknowledgers the current thread instantiates into a client, until cleared.
+     *
+     * @param acknowledgers Client acknowledgers, thread-safe. Null to clear.
+     */
+    static void registerInto(Collection<Acknowledger> acknowledgers) {
+        if (acknowledgers != null) {
+            scope.set(acknowledgers);
+        } else {
+            scope.remove();
+        }
+    }
+
+    /**
+     * Leave all acknowledgements issued by the current thread to a given acknowledger, others are ignored.
+     * Used by dispatch stages, which acknowledge messages upon completion on behalf of the consumers.
+     *
+     * @param acknowledger
+     */
+    public static void delegateTo(Acknowledger acknowledger) {
+        owner.set(acknowledger);
+    }
+
+    /**
+     * Time the acknowledgements sent by the current thread. Set by the client metrics while delivering messages, or
+     * flushing acknowledgers, as acknowledgements are sent by these threads.
+     *
+     * @param timer Acknowledgement latency timer of the client, null to disable timing.
+     */
+    static void setLatencyTimer(Timer timer) {
+        latencyTimer.set(timer);
+    }
+
+    /**
+     * Provider internals access, to identify channels.
+     *
+     * @param name Field name, looked up through the class hierarchy.
+     * @return Accessible fields, by class. Null for classes lacking the field.
+     */
+    protected static ClassValue<Field> fieldLookup(final String name) {
+        return new ClassValue<Field>() {
+            @Override
+            protected Field computeValue(Class<?> type) {
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    try {
+                        Field field = c.getDeclaredField(name);
+                        field.setAccessible(true);
+                        return field;
+                    } catch (NoSuchFieldException ex) {
+                        // Look up the superclass
+                    } catch (RuntimeException ex) {
+                        logger.warn("Unable to access ".concat(c.getName()).concat(".").concat(name), ex);
+                        return null;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @param lookup Message channel field lookup
+     * @param msg
+     * @return The message channel field value. A shared channel if unset, for messages not delivered through a session.
+     * Null if unavailable.
+     */
+    protected static Object channelOf(ClassValue<Field> lookup, Object msg) {
+        Field field = lookup.get(msg.getClass());
+        if (field == null) {
+            return null;
+        }
+        try {
+            Object channel = field.get(msg);
+            return channel != null ? channel : DETACHED;
+        } catch (IllegalAccessException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Channel pending acknowledgement.
+     */
+    private static final class Pending<T> {
+
+        private final long since;
+
+        private T msg;
+
+        private int count;
+
+        private Pending(long since) {
+            this.since = since;
+        }
+    }
+}
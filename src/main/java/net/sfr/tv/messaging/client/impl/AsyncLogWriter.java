@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * Asynchronous log output : Delivery threads format records into the reusable slots of a bounded ring buffer, a dedicated
+ * writer thread outputs them by batches. Records are claimed, formatted, then published. A claimed record is always to be
+ * published, or abandoned, as the writer thread outputs records in sequence :
+ * <pre>
+ * AsyncLogWriter.Record record = writer.claim();
+ * if (record != null) {
+ *     try {
+ *         record.text().append(...);
+ *     } catch (Exception ex) {
+ *         writer.abandon(record);
+ *         throw ex;
+ *     }
+ *     writer.publish(record);
+ * }
+ * </pre>
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.logger.async.capacity' : Ring buffer size, in records. Rounded up to a power of 2, default 8192.
+ *  <li> 'listener.logger.async.policy' : Once the buffer is full, BLOCK (default) the delivery threads, or DROP records.
+ *  <li> 'listener.logger.async.batch' : Max. number of records per batch, up to the buffer size. Default 256.
+ *  <li> 'listener.logger.async.output' : LOG4J (default), records are logged by the writer thread, one event per record ;
+ * STDOUT, records are written to the standard output, bypassing log4j, and flushed per batch.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class AsyncLogWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(AsyncLogWriter.class);
+
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    /**
+     * Records buffers grown beyond this size are trimmed once written.
+     */
+    private static final int MAX_RETAINED = 65536;
+
+    public enum Policy {
+        BLOCK, DROP
+    }
+
+    public enum Output {
+        LOG4J, STDOUT
+    }
+
+    private final Logger target;
+
+    private final Policy policy;
+
+    private final Output output;
+
+    private final int batchSize;
+
+    private final Record[] ring;
+
+    private final int mask;
+
+    /**
+     * Next sequence to claim. Guarded by this.
+     */
+    private long head;
+
+    /**
+     * Next sequence to write. Written by the writer thread, under this.
+     */
+    private volatile long tail;
+
+    /**
+     * Guarded by this
+     */
+    private long dropped;
+
+    private int waitingProducers;
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    private volatile boolean idle;
+
+    private Writer out;
+
+    private char[] chars = new char[1024];
+
+    /**
+     * @param target Logger records get logged to, LOG4J output.
+     */
+    public AsyncLogWriter(Logger target) {
+        this.target = target;
+        this.policy = Policy.valueOf(System.getProperty("listener.logger.async.policy", Policy.BLOCK.name()).toUpperCase());
+        this.output = Output.valueOf(System.getProperty("listener.logger.async.output", Output.LOG4J.name()).toUpperCase());
+        int capacity = Integer.highestOneBit(Math.max(Integer.getInteger("listener.logger.async.capacity", 8192), 2) - 1) << 1;
+        // A batch must not wrap around the ring
+        this.batchSize = Math.min(Math.max(Integer.getInteger("listener.logger.async.batch", 256), 1), capacity);
+        ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+        }
+        mask = capacity - 1;
+
+        if (output == Output.STDOUT) {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 65536);
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "jalam-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Asynchronous log output : ".concat(output.name()).concat(", capacity : ").concat(String.valueOf(capacity))
+                .concat(", policy : ").concat(policy.name()));
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("listener.logger.async");
+    }
+
+    /**
+     * Claim a record slot, blocking while the buffer is full unless records get dropped.
+     *
+     * @return An empty record, to be published. Null if dropped.
+     */
+    public Record claim() {
+        Record record;
+        synchronized (this) {
+            while (head - tail >= ring.length) {
+                if (policy == Policy.DROP || !running) {
+                    dropped++;
+                    return null;
+                }
+                waitingProducers++;
+                try {
+                    wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    dropped++;
+                    return null;
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            record = ring[(int) (head++ & mask)];
+        }
+        record.text.setLength(0);
+        return record;
+    }
+
+    /**
+     * Hand over a formatted record to the writer thread.
+     *
+     * @param record
+     */
+    public void publish(Record record) {
+        record.ready = true;
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Release a claimed record that could not be formatted, skipped by the writer thread.
+     *
+     * @param record
+     */
+    public void abandon(Record record) {
+        record.abandoned = true;
+        publish(record);
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void drain() {
+        long next = tail;
+        while (true) {
+            int count = 0;
+            while (count < batchSize && ring[(int) ((next + count) & mask)].ready) {
+                count++;
+            }
+
+            if (count == 0) {
+                if (!running) {
+                    synchronized (this) {
+                        if (head == next) {
+                            break;
+                        }
+                    }
+                }
+                idle = true;
+                if (!ring[(int) (next & mask)].ready) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                idle = false;
+                continue;
+            }
+
+            for (int i = 0; i < count; i++) {
+                Record record = ring[(int) ((next + i) & mask)];
+                if (record.abandoned) {
+                    record.abandoned = false;
+                } else {
+                    write(record.text);
+                }
+                if (record.text.capacity() > MAX_RETAINED) {
+                    record.text.setLength(0);
+                    record.text.trimToSize();
+                }
+                record.ready = false;
+            }
+            flushOutput();
+
+            next += count;
+            synchronized (this) {
+                tail = next;
+                if (waitingProducers > 0) {
+                    notifyAll();
+                }
+            }
+        }
+        flushOutput();
+    }
+
+    private void write(StringBuilder text) {
+        if (output == Output.LOG4J) {
+            target.info(text.toString());
+            return;
+        }
+        int len = text.length();
+        if (chars.length < len + 1) {
+            chars = new char[Math.max(len + 1, chars.length * 2)];
+        }
+        text.getChars(0, len, chars, 0);
+        chars[len] = '\n';
+        try {
+            out.write(chars, 0, len + 1);
+        } catch (IOException ex) {
+            logger.error("Unable to write to the standard output", ex);
+        }
+    }
+
+    private void flushOutput() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                logger.error("Unable to write to the standard output", ex);
+            }
+        }
+    }
+
+    /**
+     * @return Number of records dropped so far.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Write pending records, then stop the writer thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(DRAIN_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        long lost = getDropped();
+        if (lost > 0) {
+            logger.warn("Log buffer full, records dropped : ".concat(String.valueOf(lost)));
+        }
+    }
+
+    /**
+     * Ring buffer slot, reused.
+     */
+    public static final class Record {
+
+        private final StringBuilder text = new StringBuilder(256);
+
+        /**
+         * Set before ready, read after.
+         */
+        private boolean abandoned;
+
+        private volatile boolean ready;
+
+        private Record() {
+        }
+
+        public StringBuilder text() {
+            return text;
+        }
+    }
+}
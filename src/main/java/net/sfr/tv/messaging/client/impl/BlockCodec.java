@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Journal blocks compression codec. Blocks are encoded independently from each other, hence can be decoded
+ * starting from any block boundary.
+ *
+ * Implementations must provide a no-arg constructor. Instances are used by a single thread.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public interface BlockCodec {
+
+    /**
+     * @param block Raw block, its remaining bytes. A heap buffer.
+     * @return The encoded block, valid until the next call.
+     * @throws IOException
+     */
+    ByteBuffer encode(ByteBuffer block) throws IOException;
+
+    /**
+     * Release native resources.
+     */
+    void release();
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.hornetq.core.journal.SequentialFile;
+
+/**
+ * Compression stage, between the journaling consumer buffer and its output file : Full buffers are handed
+ * over to compressor threads, which encode then write them while the next buffer gets filled. Blocks are
+ * encoded in parallel, and written in order.
+ *
+ * Not thread safe, to be used while holding the consumer monitor.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+final class BlockCompressor {
+
+    private final SequentialFile out;
+
+    /**
+     * One codec per compressor thread.
+     */
+    private final BlockingQueue<BlockCodec> codecs;
+
+    private final boolean sync;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final ExecutorService executor;
+
+    private Future<?> last;
+
+    /**
+     * @param out Output file
+     * @param codecs Codecs, one per compressor thread
+     * @param bufferSize Block size
+     * @param sync Force data to disk upon each write
+     */
+    BlockCompressor(SequentialFile out, List<BlockCodec> codecs, int bufferSize, boolean sync) {
+        this.out = out;
+        this.codecs = new ArrayBlockingQueue<>(codecs.size(), false, codecs);
+        this.sync = sync;
+        // One buffer being filled, one per compressor thread
+        free = new ArrayBlockingQueue<>(codecs.size() + 1);
+        for (int i = 0; i <= codecs.size(); i++) {
+            free.add(ByteBuffer.allocate(bufferSize));
+        }
+        executor = Executors.newFixedThreadPool(codecs.size(), new ThreadFactory() {
+            private int idx = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jalam-file-compressor-" + idx++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return An empty buffer
+     */
+    ByteBuffer buffer() {
+        return free.remove();
+    }
+
+    /**
+     * Hand over a buffer first bytes for compression, as a block. Following bytes (partial record) are
+     * carried over to the returned buffer. Blocks until a buffer is available.
+     *
+     * @param full Buffer to compress
+     * @param end Block end offset
+     * @return An empty buffer, but for carried over bytes
+     * @throws IOException A previous block failed
+     */
+    ByteBuffer submit(final ByteBuffer full, int end) throws IOException {
+        ByteBuffer next;
+        try {
+            next = free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        next.clear();
+        full.flip();
+        full.position(end);
+        next.put(full);
+
+        full.position(0);
+        full.limit(end);
+        final Future<?> previous = last;
+        last = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Tasks start in submission order, each one holding a codec : One is always available
+                BlockCodec codec = codecs.remove();
+                try {
+                    ByteBuffer encoded = codec.encode(full);
+                    // Write in order. A failed block fails the following ones, so that no gap is left in the output
+                    if (previous != null) {
+                        previous.get();
+                    }
+                    Object event = FlightRecorder.begin(FlightRecorder.EventType.FILE_WRITE);
+                    int bytes = encoded.remaining();
+                    out.writeDirect(encoded, sync);
+                    if (event != null) {
+                        FlightRecorder.commit(event, out.getFileName(), bytes, sync);
+                    }
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                } finally {
+                    codecs.add(codec);
+                    free.add(full);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Wait for submitted blocks to be written.
+     *
+     * @throws IOException A block failed
+     */
+    void drain() throws IOException {
+        if (last == null) {
+            return;
+        }
+        try {
+            last.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Unable to compress journal block", ex.getCause());
+        }
+    }
+
+    /**
+     * Drain, then stop the compressor thread.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (BlockCodec codec : codecs) {
+                codec.release();
+            }
+        }
+    }
+}
@@ -20,7 +20,7 @@ import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -28,6 +28,8 @@ import net.sfr.tv.exceptions.ResourceInitializerException;
 import net.sfr.tv.hornetq.client.impl.HornetQClientImpl;
 import net.sfr.tv.hornetq.client.impl.LoggerMessageHandler;
 import net.sfr.tv.jms.client.impl.JmsClientImpl;
+import net.sfr.tv.jms.client.impl.JmsProducerClientImpl;
+import net.sfr.tv.jms.client.impl.JmsReplayClientImpl;
 import net.sfr.tv.jms.client.impl.MultiListenersJmsClientImpl;
 import net.sfr.tv.messaging.client.api.MessagingClient;
 import net.sfr.tv.jms.client.impl.listener.LoggerMessageListener;
@@ -97,7 +99,9 @@ public class Bootstrap {
             
             /* Retrieve and test consistency of arguments */
             Boolean jmsMode = Boolean.TRUE;
-            String jndiCnxFactory = "PreAckConsumerConnectionFactory";
+            Boolean producerMode = Boolean.FALSE;
+            String replayJournal = null;
+            String jndiCnxFactory = null;
             String destination = null;
             String clientId = null;
             String subscriptionName = null;
@@ -106,6 +110,7 @@ public class Bootstrap {
             Boolean isTopicSubscription = Boolean.TRUE;
             Boolean isDurableSubscription = Boolean.FALSE;
             Boolean unsubscribeAndExit = Boolean.FALSE;
+            int concurrency = 1;
             for (int i = 0; i < args.length; i++) {
                 switch (CliArgs.fromString(args[i])) {
                     case MODE_HQCORE:
@@ -132,6 +137,20 @@ public class Bootstrap {
                     case CONNECTION_FACTORY:
                         jndiCnxFactory = args[++i];
                         break;
+                    case CONCURRENCY:
+                        concurrency = Integer.parseInt(args[++i]);
+                        break;
+                    case PRODUCER:
+                        producerMode = Boolean.TRUE;
+                        break;
+                    case REPLAY:
+                        producerMode = Boolean.TRUE;
+                        replayJournal = args[++i];
+                        break;
+                    case VIRTUAL_THREADS:
+                        // Read by the dispatch stages, upon client initialization
+                        System.setProperty("listener.dispatch.mode", OrderedDispatcher.Mode.VIRTUAL.name());
+                        break;
                     case PREFERRED_SERVER:
                         preferredServer = args[++i];
                     case FILTER:
@@ -143,10 +162,11 @@ public class Bootstrap {
                         break;
                 }
             }
-            if (destination == null || subscriptionName == null) {
+            // Destinations may be configured per listener instead, see 'config.listeners'
+            if (subscriptionName == null && !producerMode) {
                 logger.info("Usage : ");
                 logger.info("\tjava (-Dconfig.path=your.configPath) (-Dhandler.class=your.lifeCycleController) -jar jalam.jar -d [destination] (-c [clientId]) -s [subscriptionName] (-q) (-p)  (-cf[connectionFactoryName]) <-f [filter]>\n");
-                logger.info("\t -d  : Destination JNDI name. Mandatory.");
+                logger.info("\t -d  : Destination JNDI name. Mandatory, unless listeners and destinations are configured through 'config.listeners'.");
                 logger.info("\t -c  : JMS ClientID.");
                 logger.info("\t -s  : JMS subscription name.");
                 logger.info("\t -f  : JMS selector.");
@@ -154,12 +174,18 @@ public class Bootstrap {
                 logger.info("\t -p  : Create a persistent ('durable') subscription. Default is false.");
                 logger.info("\t -u  : Unsubscribe an active durable subscription, then exit.");
                 logger.info("\t -t  : Target server alias. Otherwise randomly connects to one of the configured servers.");
-                logger.info("\t -cf : JNDI Connection Factory name. Default 'ConsumerConnectionFactory'.");
+                logger.info("\t -n  : Number of concurrent consumers per destination, each one with its own session and listener instance. Queues only. Default 1.");
+                logger.info("\t -vt : Process each message on its own virtual thread, for listeners doing blocking I/O. Max. in-flight messages : -Dlistener.dispatch.capacity (default 1024). JMS sessions get acknowledged once their in-flight messages are processed, every -Dlistener.dispatch.ack.barrier messages (default, the capacity).");
+                logger.info("\t -cf : JNDI Connection Factory name. Default 'PreAckConsumerConnectionFactory', 'ConnectionFactory' in producer mode.");
+                logger.info("\t -produce : Producer mode, for load generation : Sends messages to the destination (-d), see 'producer.*' properties. JMS only.");
+                logger.info("\t -replay : Replay mode : Sends the records of a journal file (see 'listener.file.*' properties) to the destination (-d), see 'replay.*' properties. JMS only.");
                 logger.info("\n");
                 logger.info("Examples : ");
                 logger.info("\t Persistent topic subscription, with clientID set : java -jar jalam.jar -d /topic/1 -p -s mySubscriptionIdentifier -c myClientId");
                 logger.info("\t Unsubscribe then exit : java -jar jalam.jar -u -s mySubscriptionIdentifier -c myClientId");
                 logger.info("\t Subscribe to multiple destinations : java -jar jalam.jar -d /topic/1,/topic/2,/topic/3 -s mySubscriptionIdentifier");
+                logger.info("\t Send 1M messages at 10K msg/s : java -Dproducer.messages=1000000 -Dproducer.rate=10000 -jar jalam.jar -produce -d /topic/1");
+                logger.info("\t Replay a journal ten times faster : java -Dreplay.speed=10 -jar jalam.jar -replay /var/log/jalam/journal.out -d /queue/1");
                 System.exit(1);
             }
             
@@ -190,6 +216,18 @@ public class Bootstrap {
                 System.exit(1);
             }
 
+            if (producerMode && !jmsMode) {
+                logger.fatal("Producer mode is only available with the JMS API !");
+                System.exit(1);
+            }
+            if (jndiCnxFactory == null) {
+                jndiCnxFactory = producerMode ? "ConnectionFactory" : "PreAckConsumerConnectionFactory";
+            }
+            if (destination == null && (producerMode || !jmsMode || !jmsProps.containsKey("config.listeners"))) {
+                logger.fatal("No destination specified (-d) !");
+                System.exit(1);
+            }
+
             final MessagingProvidersConfiguration messagingProvidersConfig = new MessagingProvidersConfiguration(jmsProps, null);
             
             Class lifecycleControllerClass = null;
@@ -217,17 +255,29 @@ public class Bootstrap {
                 System.exit(1);
             }
             
-            if (!jmsMode) {
+            if (replayJournal != null) {
+                // JOURNAL REPLAY
+                client = new JmsReplayClientImpl(messagingProvidersConfig, jmsProps, preferredServer, destination, jndiCnxFactory, replayJournal);
+            } else if (producerMode) {
+                // LOAD GENERATION
+                client = new JmsProducerClientImpl(messagingProvidersConfig, jmsProps, preferredServer, destination, jndiCnxFactory);
+            } else if (!jmsMode) {
                 // HORNETQ CORE CLIENT PROTOCOL
-                client = new HornetQClientImpl(messagingProvidersConfig, preferredServer, subscriptionName, selector, lifecycleControllerClass, listenerClass, destination.split("\\,"));
+                client = new HornetQClientImpl(messagingProvidersConfig, preferredServer, isTopicSubscription, isDurableSubscription, subscriptionName, selector, lifecycleControllerClass, listenerClass, destination.split("\\,"), concurrency);
             } else {
                 // JMS API CLIENT
                 if (jmsProps.containsKey("config.listeners")) {
                     // COMPLEX LISTENERS/DESTINATIONS DEFINED IN jms.properties
-                    Map<String[], String> destinationsByListeners = new HashMap<>();
+                    // Keep the configuration order : Listeners client IDs are indexed upon it
+                    Map<String[], String> destinationsByListeners = new LinkedHashMap<>();
                     String listenerClassNames = jmsProps.getProperty("config.listeners");
                     for (String lstnClass : Arrays.asList(listenerClassNames.split("\\,"))) {
+                        lstnClass = lstnClass.trim();
                         String destinationsString = jmsProps.getProperty(lstnClass.concat(".destinations"), null);
+                        if (destinationsString == null) {
+                            logger.fatal("No destinations configured for ".concat(lstnClass).concat(", please set ").concat(lstnClass).concat(".destinations"));
+                            System.exit(1);
+                        }
                         destinationsByListeners.put(destinationsString.split("\\,"), lstnClass);
                     }
 
@@ -256,7 +306,8 @@ public class Bootstrap {
                             lifecycleControllerClass,
                             listenerClass,
                             destination.split("\\,"),
-                            jndiCnxFactory);
+                            jndiCnxFactory,
+                            concurrency);
                 }
             }
             
@@ -281,9 +332,15 @@ public class Bootstrap {
                 }
             });
 
-        } catch (NumberFormatException | IOException | ResourceInitializerException ex) {
+            if (producerMode) {
+                // Exit once all messages are sent, the shutdown hook stops the client
+                ((JmsProducerClientImpl) client).awaitCompletion();
+                System.exit(0);
+            }
+
+        } catch (NumberFormatException | IOException | ResourceInitializerException | InterruptedException ex) {
             ex.printStackTrace(System.err);
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -31,6 +31,10 @@ public enum CliArgs {
     UNSUBSCRIBE("-u"),
     CONNECTION_FACTORY("-cf"),
     PREFERRED_SERVER("-t"),
+    CONCURRENCY("-n"),
+    VIRTUAL_THREADS("-vt"),
+    PRODUCER("-produce"),
+    REPLAY("-replay"),
     MODE_HQCORE("-hq");
     
     private final String value;
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Timer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Client metrics : A single registry per client, shared by its connections, listeners and acknowledgers.
+ *
+ * Registered metrics :
+ * <ul>
+ *  <li> 'group.[group].messages' : Messages rate, per servers group.
+ *  <li> 'destination.[destination].messages', 'destination.[destination].bytes' : Messages and body bytes rates, per destination.
+ *  <li> 'listener.[class].onMessage' : Time spent in onMessage(), on the delivery thread.
+ *  <li> 'listener.[class].cpu', 'listener.[class].allocated', 'listener.[class].stalls', ... : Listener profile, see
+ * {@link ConsumerProfiler}.
+ *  <li> 'acknowledge' : Acknowledgement latency, of the acknowledgements sent while delivering messages, or upon flush.
+ *  <li> 'connection.[key].attempts', 'connection.[key].failures' : Initial connection attempts, failed ones being retried.
+ * Reconnections after a connection failure are left to the connection managers, and not counted.
+ *  <li> 'connections.established' : Number of established connections.
+ * </ul>
+ * Message, destination and listener metrics are only collected when reporting is configured, profiling or flight recorder
+ * events enabled. When profiling, metrics are reported to the console unless reporters are configured.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'metrics.reporters' : Comma separated list of CONSOLE, CSV, JMX. Default none.
+ *  <li> 'metrics.interval' : CONSOLE/CSV reporting interval, in ms. Default 5000.
+ *  <li> 'metrics.csv.directory' : CSV output directory. Default, the working directory.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class ClientMetrics {
+
+    private static final Logger logger = Logger.getLogger(ClientMetrics.class);
+
+    public enum Reporter {
+        CONSOLE, CSV, JMX
+    }
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    /**
+     * Guarded by this
+     */
+    private final Set<Reporter> reporters;
+
+    private final List<Closeable> running = new ArrayList<>();
+
+    private final long interval;
+
+    private final String csvDirectory;
+
+    public ClientMetrics() {
+        reporters = parseReporters(System.getProperty("metrics.reporters"));
+        if (reporters.isEmpty() && ConsumerProfiler.isEnabled()) {
+            reporters.add(Reporter.CONSOLE);
+        }
+        interval = Math.max(Long.getLong("metrics.interval", 5000L), 1L);
+        csvDirectory = System.getProperty("metrics.csv.directory", ".");
+    }
+
+    /**
+     * @return true if reporting is configured, profiling or flight recorder events enabled, hence message metrics are to be collected.
+     */
+    public static boolean isEnabled() {
+        return !parseReporters(System.getProperty("metrics.reporters")).isEmpty() || ConsumerProfiler.isEnabled() || FlightRecorder.isEnabled();
+    }
+
+    private static Set<Reporter> parseReporters(String value) {
+        Set<Reporter> result = EnumSet.noneOf(Reporter.class);
+        if (value != null) {
+            for (String reporter : value.split(",")) {
+                if (reporter.trim().length() > 0) {
+                    result.add(Reporter.valueOf(reporter.trim().toUpperCase()));
+                }
+            }
+        }
+        return result;
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return The acknowledgement latency timer.
+     */
+    public Timer getAcknowledgeTimer() {
+        return registry.timer("acknowledge");
+    }
+
+    /**
+     * Ask for the metrics to be reported. Used by consumers which are all about metrics : Reports to the console,
+     * unless reporters are configured. To be called before start().
+     */
+    public synchronized void requestReporting() {
+        if (reporters.isEmpty()) {
+            reporters.add(Reporter.CONSOLE);
+        }
+    }
+
+    /**
+     * Start the configured reporters.
+     */
+    public synchronized void start() {
+        if (!running.isEmpty()) {
+            return;
+        }
+        for (Reporter reporter : reporters) {
+            switch (reporter) {
+                case CONSOLE:
+                    ScheduledReporter console = ConsoleReporter.forRegistry(registry)
+                            .convertRatesTo(TimeUnit.SECONDS)
+                            .convertDurationsTo(TimeUnit.MILLISECONDS)
+                            .build();
+                    console.start(interval, TimeUnit.MILLISECONDS);
+                    running.add(console);
+                    break;
+                case CSV:
+                    File directory = new File(csvDirectory);
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        logger.error("Unable to create metrics directory ".concat(directory.getAbsolutePath()));
+                        break;
+                    }
+                    ScheduledReporter csv = CsvReporter.forRegistry(registry)
+                            .formatFor(Locale.US)
+                            .convertRatesTo(TimeUnit.SECONDS)
+                            .convertDurationsTo(TimeUnit.MILLISECONDS)
+                            .build(directory);
+                    csv.start(interval, TimeUnit.MILLISECONDS);
+                    running.add(csv);
+                    break;
+                case JMX:
+                    JmxReporter jmx = JmxReporter.forRegistry(registry)
+                            .inDomain("jalam")
+                            .convertRatesTo(TimeUnit.SECONDS)
+                            .convertDurationsTo(TimeUnit.MILLISECONDS)
+                            .build();
+                    jmx.start();
+                    running.add(jmx);
+                    break;
+            }
+        }
+        if (!reporters.isEmpty()) {
+            logger.info("Metrics reporters : ".concat(reporters.toString()));
+        }
+    }
+
+    /**
+     * Issue a last report, then stop the reporters.
+     */
+    public synchronized void stop() {
+        for (Closeable reporter : running) {
+            if (reporter instanceof ScheduledReporter) {
+                ((ScheduledReporter) reporter).report();
+            }
+            try {
+                reporter.close();
+            } catch (IOException ex) {
+                logger.warn("Unable to close metrics reporter", ex);
+            }
+        }
+        running.clear();
+    }
+}
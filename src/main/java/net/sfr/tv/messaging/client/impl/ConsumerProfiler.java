@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Hot path profiler, around a message consumer invocations :
+ * <ul>
+ *  <li> 'listener.[class].cpu' : CPU time per message, in microseconds. Sampled.
+ *  <li> 'listener.[class].allocated' : Allocated bytes per message. Sampled, on JVMs supporting thread allocation accounting.
+ *  <li> 'listener.[class].thread.[thread]-[id].cpu', 'listener.[class].thread.[thread]-[id].allocated' : Delivery threads
+ * totals, CPU time in ms and allocated bytes. Read upon reporting, not on the delivery thread. Removed once the thread died.
+ *  <li> 'listener.[class].stalls' : Number of messages exceeding the stall threshold. The delivery thread stack gets
+ * logged, while stalled.
+ * </ul>
+ * Durations (onMessage) are recorded by the metering stage.
+ *
+ * Profiling happens on the delivery thread : With dispatch enabled (including the Vert.x event bus), it measures the
+ * hand-off to the dispatch stage, not the target consumer itself.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'metrics.profile' : Enables profiling. Default false.
+ *  <li> 'metrics.profile.sampling' : CPU time and allocations are measured for 1 message in N. Default 16.
+ *  <li> 'metrics.profile.stall' : Stall threshold, in ms. Default 1000, 0 disables stalls detection.
+ * </ul>
+ *
+ * @see net.sfr.tv.messaging.client.impl.MeteredConsumer
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class ConsumerProfiler {
+
+    private static final Logger logger = Logger.getLogger(ConsumerProfiler.class);
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Null if allocations accounting is unsupported.
+     */
+    private static final com.sun.management.ThreadMXBean allocations;
+
+    private static final boolean cpuTimeSupported;
+
+    static {
+        cpuTimeSupported = threads.isThreadCpuTimeSupported();
+        if (cpuTimeSupported && !threads.isThreadCpuTimeEnabled()) {
+            threads.setThreadCpuTimeEnabled(true);
+        }
+        com.sun.management.ThreadMXBean sunThreads = null;
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            sunThreads = (com.sun.management.ThreadMXBean) threads;
+            sunThreads.setThreadAllocatedMemoryEnabled(true);
+        }
+        allocations = sunThreads;
+    }
+
+    private static Watchdog watchdog;
+
+    private final MetricRegistry registry;
+
+    private final String name;
+
+    private final int sampling;
+
+    private final long stallThreshold;
+
+    private final Histogram cpu;
+
+    private final Histogram allocated;
+
+    private final Counter stalls;
+
+    private final ThreadLocal<Invocation> invocations = new ThreadLocal<Invocation>() {
+        @Override
+        protected Invocation initialValue() {
+            return register(Thread.currentThread());
+        }
+    };
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("metrics.profile");
+    }
+
+    /**
+     * @param registry Client metrics registry
+     * @param name Target consumer name
+     */
+    public ConsumerProfiler(MetricRegistry registry, String name) {
+        this.registry = registry;
+        this.name = name;
+        this.sampling = Math.max(Integer.getInteger("metrics.profile.sampling", 16), 1);
+        this.stallThreshold = TimeUnit.MILLISECONDS.toNanos(Long.getLong("metrics.profile.stall", 1000L));
+        this.cpu = registry.histogram(MetricRegistry.name("listener", name, "cpu"));
+        this.allocated = registry.histogram(MetricRegistry.name("listener", name, "allocated"));
+        this.stalls = registry.counter(MetricRegistry.name("listener", name, "stalls"));
+    }
+
+    /**
+     * Delivery thread first invocation : Threads totals gauges, and watchdog registration.
+     */
+    private Invocation register(final Thread thread) {
+        final long threadId = thread.getId();
+        Invocation invocation = new Invocation(this, thread);
+
+        // Pooled threads get replaced, possibly by threads reusing a dead thread name : Keyed by thread id as well.
+        String threadName = thread.getName().concat("-").concat(String.valueOf(threadId));
+        if (cpuTimeSupported) {
+            register(invocation, MetricRegistry.name("listener", name, "thread", threadName, "cpu"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    long value = threads.getThreadCpuTime(threadId);
+                    return value >= 0 ? TimeUnit.NANOSECONDS.toMillis(value) : value;
+                }
+            });
+        }
+        if (allocations != null) {
+            register(invocation, MetricRegistry.name("listener", name, "thread", threadName, "allocated"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return allocations.getThreadAllocatedBytes(threadId);
+                }
+            });
+        }
+
+        // Registered regardless of the stall threshold, the watchdog removes dead threads gauges.
+        watchdog(stallThreshold).invocations.add(invocation);
+        return invocation;
+    }
+
+    private void register(Invocation invocation, String gaugeName, Gauge<Long> gauge) {
+        try {
+            registry.register(gaugeName, gauge);
+            invocation.gauges.add(gaugeName);
+        } catch (IllegalArgumentException ex) {
+            // Already registered, consumers sharing a name
+        }
+    }
+
+    private static synchronized Watchdog watchdog(long stallThreshold) {
+        if (watchdog == null) {
+            watchdog = new Watchdog(stallThreshold > 0 ? Math.max(TimeUnit.NANOSECONDS.toMillis(stallThreshold) / 4, 10) : 1000);
+            watchdog.start();
+        }
+        return watchdog;
+    }
+
+    /**
+     * To be called by the delivery thread, before handing over a message to the target consumer.
+     *
+     * @return The invocation, to be passed to {@link #exit(Invocation)}.
+     */
+    public Invocation enter() {
+        Invocation invocation = invocations.get();
+        if (++invocation.count % sampling == 0) {
+            invocation.sampled = true;
+            invocation.cpuStart = cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0;
+            invocation.allocatedStart = allocations != null ? allocations.getThreadAllocatedBytes(invocation.threadId) : 0;
+        } else {
+            invocation.sampled = false;
+        }
+        invocation.start = System.nanoTime();
+        return invocation;
+    }
+
+    /**
+     * To be called by the delivery thread, once the target consumer returned.
+     *
+     * @param invocation
+     */
+    public void exit(Invocation invocation) {
+        invocation.start = 0;
+        if (invocation.sampled) {
+            if (cpuTimeSupported) {
+                cpu.update(TimeUnit.NANOSECONDS.toMicros(threads.getCurrentThreadCpuTime() - invocation.cpuStart));
+            }
+            if (allocations != null) {
+                allocated.update(allocations.getThreadAllocatedBytes(invocation.threadId) - invocation.allocatedStart);
+            }
+        }
+    }
+
+    /**
+     * A delivery thread ongoing invocation. Reused across messages.
+     */
+    public static final class Invocation {
+
+        private final ConsumerProfiler profiler;
+
+        private final Thread thread;
+
+        private final long threadId;
+
+        /**
+         * Thread totals gauges names, removed by the watchdog once the thread died.
+         */
+        private final List<String> gauges = new ArrayList<>(2);
+
+        private long count;
+
+        private boolean sampled;
+
+        private long cpuStart;
+
+        private long allocatedStart;
+
+        /**
+         * Invocation start (System.nanoTime()), 0 while idle.
+         */
+        private volatile long start;
+
+        /**
+         * Last stall reported, by start time. Watchdog only.
+         */
+        private long reported;
+
+        private Invocation(ConsumerProfiler profiler, Thread thread) {
+            this.profiler = profiler;
+            this.thread = thread;
+            this.threadId = thread.getId();
+        }
+    }
+
+    /**
+     * Stalled invocations detection, shared by all profilers.
+     */
+    private static final class Watchdog extends Thread {
+
+        private final List<Invocation> invocations = new CopyOnWriteArrayList<>();
+
+        private final long period;
+
+        private Watchdog(long period) {
+            super("jalam-stall-watchdog");
+            setDaemon(true);
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (Invocation invocation : invocations) {
+                    long start = invocation.start;
+                    if (!invocation.thread.isAlive()) {
+                        invocations.remove(invocation);
+                        for (String gauge : invocation.gauges) {
+                            invocation.profiler.registry.remove(gauge);
+                        }
+                    } else if (start != 0 && start != invocation.reported && invocation.profiler.stallThreshold > 0
+                            && now - start > invocation.profiler.stallThreshold) {
+                        invocation.reported = start;
+                        invocation.profiler.stalls.inc();
+                        report(invocation, now - start);
+                    }
+                }
+            }
+        }
+
+        private void report(Invocation invocation, long elapsed) {
+            StringBuilder trace = new StringBuilder(1024);
+            trace.append(invocation.profiler.name).append(" stalled for ").append(TimeUnit.NANOSECONDS.toMillis(elapsed))
+                    .append(" ms on thread ").append(invocation.thread.getName()).append(" :");
+            for (StackTraceElement element : invocation.thread.getStackTrace()) {
+                trace.append("\n\tat ").append(element);
+            }
+            logger.warn(trace.toString());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.Flushable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import org.apache.log4j.Logger;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Vert.x event bus bridge : Received messages are converted to JSON, and sent (point-to-point) to an event bus address.
+ *
+ * Flow control is credit based : Every message sent consumes a credit, given back once the downstream handler replies.
+ * Once out of credits, the delivery thread blocks, hence the session stops consuming until downstream handlers catch up.
+ *
+ * Messages are acknowledged once replied to, per channel (session or consumer, see {@link Acknowledger#channel(Object)}),
+ * by the delivery threads, as sessions are not to be used concurrently :
+ * <ul>
+ *  <li> Per consumer acknowledgement (HornetQ core) : Upon delivery, the last message of the consumer within the replied
+ * prefix of its sent messages gets acknowledged, through the acknowledgement policy.
+ *  <li> Session wide acknowledgement (JMS) : Acknowledging any message acknowledges all the messages delivered so far by
+ * the session. Hence the delivery thread waits for replies to all the messages sent from its session, every 'credits'
+ * messages, then acknowledges.
+ * </ul>
+ * Remaining acknowledgements are sent upon flush(), once replies are received. Messages without reply (handler failure,
+ * or timeout) are sent again, keeping their credit, until replied to or the bridge gets released : Unacknowledged, they
+ * are redelivered by the broker afterwards.
+ *
+ * JSON messages fields : messageId, destination, timestamp, properties (object), body (string, or binary).
+ *
+ * @param <T> Message type
+ *
+ * @see net.sfr.tv.jms.client.impl.JmsClientVerticle
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class EventBusConsumerImpl<T> implements MessageConsumer, Flushable {
+
+    private static final Logger logger = Logger.getLogger(EventBusConsumerImpl.class);
+
+    /**
+     * Delay before a message without reply is sent again, in ms.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * Max. time waited for replies, upon flush, in ms.
+     */
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    /**
+     * Messages whose channel is unknown share a single channel.
+     */
+    private static final Object UNKNOWN_CHANNEL = new Object();
+
+    protected final Acknowledger<T> acknowledger;
+
+    private final boolean sessionWideAck;
+
+    /**
+     * Channels awaiting replies and acknowledgements, by key. Guarded by itself.
+     */
+    private final Map<Object, Channel<T>> channels = new HashMap<>();
+
+    private Vertx vertx;
+
+    private Context context;
+
+    private String address;
+
+    private long replyTimeout;
+
+    private int maxCredits;
+
+    private Semaphore credits;
+
+    private volatile boolean running = false;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param acknowledger Acknowledgement policy
+     * @param sessionWideAck true if acknowledging a message acknowledges all the messages delivered by the session.
+     */
+    protected EventBusConsumerImpl(Acknowledger<T> acknowledger, boolean sessionWideAck) {
+        this.acknowledger = acknowledger;
+        this.sessionWideAck = sessionWideAck;
+    }
+
+    /**
+     * Bind to the event bus. To be called from a verticle, before message delivery starts.
+     *
+     * @param vertx Vert.x instance
+     * @param context Verticle context, event bus operations are run on
+     * @param address Event bus address
+     * @param credits Max. number of messages awaiting a reply
+     * @param replyTimeout Reply timeout, in ms. The message is sent again upon timeout.
+     */
+    public void bind(Vertx vertx, Context context, String address, int credits, long replyTimeout) {
+        this.vertx = vertx;
+        this.context = context;
+        this.address = address;
+        this.maxCredits = Math.max(credits, 1);
+        this.credits = new Semaphore(maxCredits);
+        this.replyTimeout = replyTimeout;
+        this.running = true;
+    }
+
+    /**
+     * Send a message, once a credit is available, then acknowledge the replied ones. Called by the delivery thread.
+     *
+     * @param json
+     * @param msg Original message, acknowledged once replied to
+     * @return false if the bridge has been released, or interrupted, while waiting for a credit or replies.
+     */
+    protected final boolean send(final JsonObject json, T msg) {
+        if (context == null) {
+            throw new IllegalStateException("Not bound to an event bus, see bind()");
+        }
+        try {
+            while (!credits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        Object key = acknowledger.channel(msg);
+        final Channel<T> channel;
+        final Pending<T> pending = new Pending<>(msg, json);
+        T replied = null;
+        boolean barrier = false;
+        synchronized (channels) {
+            Channel<T> existing = channels.get(key != null ? key : UNKNOWN_CHANNEL);
+            if (existing == null) {
+                existing = new Channel<>();
+                channels.put(key != null ? key : UNKNOWN_CHANNEL, existing);
+            }
+            channel = existing;
+        }
+        synchronized (channel) {
+            channel.inFlight++;
+            channel.last = msg;
+            if (sessionWideAck) {
+                barrier = ++channel.unacknowledged >= maxCredits;
+            } else {
+                // Replied prefix
+                while (!channel.sent.isEmpty() && channel.sent.peekFirst().replied) {
+                    replied = channel.sent.pollFirst().msg;
+                }
+                channel.sent.addLast(pending);
+            }
+        }
+
+        // Event bus operations belong to the verticle context
+        context.runOnContext(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+                vertx.eventBus().sendWithTimeout(address, json, replyTimeout, new ReplyHandler(channel, pending));
+            }
+        });
+
+        if (replied != null) {
+            acknowledger.acknowledge(replied);
+        }
+
+        if (barrier) {
+            synchronized (channel) {
+                try {
+                    while (channel.inFlight > 0) {
+                        if (!running) {
+                            return false;
+                        }
+                        channel.wait(100);
+                    }
+                    channel.unacknowledged = 0;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            acknowledger.acknowledge(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Stop message delivery, wait for replies to the messages sent so far, then acknowledge them. Upon shutdown,
+     * acknowledgements are sent by the calling thread.
+     */
+    @Override
+    public void flush() {
+        List<Object> keys;
+        synchronized (channels) {
+            keys = new ArrayList<Object>(channels.keySet());
+        }
+        acknowledger.stopDelivery(keys);
+
+        if (credits != null) {
+            try {
+                if (credits.tryAcquire(maxCredits, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    credits.release(maxCredits);
+                } else {
+                    logger.warn("Messages still awaiting a reply from ".concat(address).concat(", they won't be acknowledged."));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<T> replied = new ArrayList<>();
+        synchronized (channels) {
+            for (Iterator<Channel<T>> it = channels.values().iterator(); it.hasNext();) {
+                Channel<T> channel = it.next();
+                synchronized (channel) {
+                    if (sessionWideAck) {
+                        if (channel.unacknowledged > 0 && channel.inFlight == 0) {
+                            replied.add(channel.last);
+                            channel.unacknowledged = 0;
+                        }
+                    } else {
+                        T last = null;
+                        while (!channel.sent.isEmpty() && channel.sent.peekFirst().replied) {
+                            last = channel.sent.pollFirst().msg;
+                        }
+                        if (last != null) {
+                            replied.add(last);
+                        }
+                    }
+                    if (channel.inFlight == 0) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        for (T msg : replied) {
+            acknowledger.acknowledge(msg);
+        }
+        acknowledger.flush();
+    }
+
+    @Override
+    public void release() {
+        running = false;
+        if (failures.get() > 0) {
+            logger.info("Messages sent again to ".concat(String.valueOf(address)).concat(", for lack of reply : ").concat(String.valueOf(failures.get())));
+        }
+        acknowledger.release();
+    }
+
+    /**
+     * Runs on the verticle context.
+     */
+    private final class ReplyHandler implements Handler<AsyncResult<Message<Object>>> {
+
+        private final Channel<T> channel;
+
+        private final Pending<T> pending;
+
+        private ReplyHandler(Channel<T> channel, Pending<T> pending) {
+            this.channel = channel;
+            this.pending = pending;
+        }
+
+        @Override
+        public void handle(AsyncResult<Message<Object>> reply) {
+            if (reply.succeeded()) {
+                synchronized (channel) {
+                    pending.replied = true;
+                    if (--channel.inFlight == 0) {
+                        channel.notifyAll();
+                    }
+                }
+                credits.release();
+                return;
+            }
+
+            if (failures.incrementAndGet() % 1000 == 1) {
+                logger.warn("No reply from ".concat(address).concat(" : ").concat(String.valueOf(reply.cause().getMessage()))
+                        .concat(", failures so far : ").concat(String.valueOf(failures.get())));
+            }
+            if (!running) {
+                // Left unacknowledged
+                credits.release();
+                return;
+            }
+            // Send again, keeping the credit
+            vertx.setTimer(RETRY_DELAY, new Handler<Long>() {
+                @Override
+                public void handle(Long timerId) {
+                    vertx.eventBus().sendWithTimeout(address, pending.json, replyTimeout, ReplyHandler.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Session or consumer state. Guarded by itself.
+     */
+    private static final class Channel<T> {
+
+        /**
+         * Per consumer acknowledgement : Sent messages, in order.
+         */
+        private final Deque<Pending<T>> sent = new ArrayDeque<>();
+
+        private long inFlight;
+
+        /**
+         * Session wide acknowledgement : Sent messages since the last acknowledgement.
+         */
+        private long unacknowledged;
+
+        private T last;
+    }
+
+    private static final class Pending<T> {
+
+        private final T msg;
+
+        private final JsonObject json;
+
+        /**
+         * Guarded by the channel.
+         */
+        private boolean replied;
+
+        private Pending(T msg, JsonObject json) {
+            this.msg = msg;
+            this.json = json;
+        }
+    }
+}
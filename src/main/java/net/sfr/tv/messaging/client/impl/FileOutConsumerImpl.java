@@ -16,41 +16,519 @@
 package net.sfr.tv.messaging.client.impl;
 
 import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import net.sfr.tv.messaging.api.MessageConsumer;
 import org.apache.log4j.Logger;
 import org.hornetq.core.journal.SequentialFile;
 import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
 
 /**
+ * Journaling consumer. Two output modes are available :
+ * <ul>
+ *  <li> SEQUENTIAL : Records are UTF-8 encoded into a reusable direct buffer, which is written to file (group
+ * commit) when full, or periodically.
+ *  <li> MAPPED : Records are UTF-8 encoded straight into a memory-mapped, rolling journal.
+ *  @see net.sfr.tv.messaging.client.impl.MappedJournal
+ * </ul>
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.file.output' : Output file, absolute path. Concurrent instances (-n) each get their own output, suffixed with
+ * their index among the client listeners from the second one on : 'file', 'file-1', 'file-2'... Unlike journal segments.
+ *  <li> 'listener.file.mode' : SEQUENTIAL (default), MAPPED.
+ *  <li> 'listener.file.buffer.size' : SEQUENTIAL mode, group commit buffer size, in bytes. Default 256KB.
+ *  <li> 'listener.file.flush.interval' : Max delay (ms) before buffered records get written. 0 writes every record. Default 1000.
+ *  <li> 'listener.file.sync' : NONE (default), leave it to the OS ; COMMIT, force data to disk upon each write.
+ *  <li> 'listener.file.segment.size' : MAPPED mode, segment size, in bytes. Default 64MB.
+ *  <li> 'listener.file.roll.interval' : MAPPED mode, max. segment duration, in ms. Default 0, roll on size only. Checked
+ * once a record is written, and upon flush : Idle segments roll on the next flush, or the next record if flush.interval is 0.
+ *  <li> 'listener.file.retention' : MAPPED mode, number of segments to keep. Default 0, keep all.
+ *  <li> 'listener.file.properties' : Comma separated list of message properties to write, as 'name=value;', before the body.
+ *  <li> 'listener.file.timestamp' : Write the message timestamp (epoch, ms), as 'timestamp=value;', after the message ID.
+ * Reception time stands for messages sent without timestamp. Required to replay journals with their original timing. Default false.
+ *  <li> 'listener.file.compression' : SEQUENTIAL mode, NONE (default), GZIP, or a BlockCodec implementation class name.
+ *  <li> 'listener.file.compression.threads' : Number of compressor threads. Default 1.
+ * Buffers are compressed as independent blocks, off the delivery thread. Blocks end on a record boundary, unless a
+ * record exceeds half the buffer size.
+ *  @see net.sfr.tv.messaging.client.impl.GzipBlockCodec
+ * </ul>
+ *
+ * Records are '\n' terminated lines of ';' terminated 'name=value' fields, followed by the body. Values and bodies are written
+ * through the writeEscaped methods : Line feed, ';' and '\' bytes are escaped as '\n', '\;' and '\\', binary bodies included.
+ * @see net.sfr.tv.messaging.client.impl.JournalReader#unescape(java.nio.ByteBuffer)
+ *
+ * Records must be appended while holding the consumer monitor, using the write methods then endRecord(), or abortRecord()
+ * upon failure. Buffered records that could not be written are kept, and written with the next ones.
+ *
+ * Messages are to be acknowledged once written : Subclasses acknowledgers get the consumer as output, flushed before
+ * acknowledgements are sent, by the delivery threads. Unless 'listener.ack.mode' is set, they are DUPS_OK acknowledgers :
+ * Messages get acknowledged along with the first one delivered 'listener.ack.batch.timeout' ms after the previous
+ * acknowledgement, see {@link Acknowledger}. The flusher thread only
+ * writes records.
  *
  * @author matthieu.chaplin@sfr.com
  */
-public abstract class FileOutConsumerImpl implements MessageConsumer {
- 
+public abstract class FileOutConsumerImpl implements MessageConsumer, Flushable {
+
     protected final Logger logger = Logger.getLogger(FileOutConsumerImpl.class);
-    
+
+    public enum SyncPolicy {
+        NONE, COMMIT
+    }
+
+    public enum OutputMode {
+        SEQUENTIAL, MAPPED
+    }
+
     protected final String fileName;
-    
+
+    /**
+     * Message properties to write, if any.
+     */
+    protected final String[] properties;
+
+    /**
+     * Whether records hold the message timestamp.
+     */
+    protected final boolean timestamps;
+
+    /**
+     * Timestamp digits scratch.
+     */
+    private final byte[] digits = new byte[20];
+
+    /**
+     * SEQUENTIAL mode output, null otherwise.
+     */
     protected final SequentialFile out;
-    
+
+    /**
+     * MAPPED mode output, null otherwise.
+     */
+    private final MappedJournal journal;
+
+    /**
+     * SEQUENTIAL mode compression stage, if any.
+     */
+    private final BlockCompressor compressor;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Current record start offset.
+     */
+    private int recordStart;
+
+    /**
+     * Whether part of the current record has been written, or handed over for compression, already.
+     */
+    private boolean spilled;
+
+    private final boolean sync;
+
+    private final long flushInterval;
+
+    private final ScheduledExecutorService flusher;
+
     public FileOutConsumerImpl() throws Exception {
-        
-        fileName = System.getProperty("listener.file.output", "");
+
+        int idx = MessagingClientImpl.listenerIndex();
+        String output = System.getProperty("listener.file.output", "");
+        fileName = idx > 0 ? output.concat("-").concat(String.valueOf(idx)) : output;
+        if (idx > 0) {
+            logger.info("Concurrent file output instance, writing to ".concat(fileName));
+        }
         File wrapper = new File(fileName);
-        
-        NIOSequentialFileFactory fileFactory = new NIOSequentialFileFactory(wrapper.getParent());
-        out = fileFactory.createSequentialFile(wrapper.getName(), 1); // MAX IO VALUE FOR NIO IS 1
-        
-        out.open();
-        
-    }
-    
+        sync = SyncPolicy.valueOf(System.getProperty("listener.file.sync", SyncPolicy.NONE.name()).toUpperCase()) == SyncPolicy.COMMIT;
+
+        if (OutputMode.valueOf(System.getProperty("listener.file.mode", OutputMode.SEQUENTIAL.name()).toUpperCase()) == OutputMode.MAPPED) {
+            out = null;
+            journal = new MappedJournal(wrapper,
+                    Math.max(Integer.getInteger("listener.file.segment.size", 64 * 1024 * 1024), 4096),
+                    Long.getLong("listener.file.roll.interval", 0L),
+                    Integer.getInteger("listener.file.retention", 0));
+            buffer = journal.buffer();
+            compressor = null;
+            if (!"NONE".equalsIgnoreCase(System.getProperty("listener.file.compression", "NONE"))) {
+                logger.warn("Compression is only available in SEQUENTIAL mode, ignoring it.");
+            }
+        } else {
+            NIOSequentialFileFactory fileFactory = new NIOSequentialFileFactory(wrapper.getParent());
+            out = fileFactory.createSequentialFile(wrapper.getName(), 1); // MAX IO VALUE FOR NIO IS 1
+
+            out.open();
+
+            journal = null;
+            int bufferSize = Math.max(Integer.getInteger("listener.file.buffer.size", 256 * 1024), 4096);
+            String compression = System.getProperty("listener.file.compression", "NONE");
+            if (!"NONE".equalsIgnoreCase(compression)) {
+                List<BlockCodec> codecs = new ArrayList<>();
+                for (int i = 0; i < Math.max(Integer.getInteger("listener.file.compression.threads", 1), 1); i++) {
+                    codecs.add(instantiateCodec(compression));
+                }
+                compressor = new BlockCompressor(out, codecs, bufferSize, sync);
+                buffer = compressor.buffer();
+                logger.info("Compressing ".concat(fileName).concat(" with ").concat(codecs.get(0).getClass().getName()).concat(", threads : ").concat(String.valueOf(codecs.size())));
+            } else {
+                compressor = null;
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        flushInterval = Long.getLong("listener.file.flush.interval", 1000L);
+
+        String props = System.getProperty("listener.file.properties", "").trim();
+        properties = props.length() > 0 ? props.split("\\s*,\\s*") : new String[0];
+        timestamps = Boolean.parseBoolean(System.getProperty("listener.file.timestamp", "false"));
+
+        if (flushInterval > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "jalam-file-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException ex) {
+                        logger.error("Unable to write to " + fileName, ex);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * @param name GZIP, or a BlockCodec implementation class name
+     * @return A new codec
+     */
+    private static BlockCodec instantiateCodec(String name) throws Exception {
+        if ("GZIP".equalsIgnoreCase(name)) {
+            return new GzipBlockCodec();
+        }
+        Class codecClass = ClassLoader.getSystemClassLoader().loadClass(name);
+        if (!BlockCodec.class.isAssignableFrom(codecClass)) {
+            throw new IllegalArgumentException(name.concat(" is not a subtype of ").concat(BlockCodec.class.getName()));
+        }
+        return (BlockCodec) codecClass.newInstance();
+    }
+
+    protected final void write(byte b) throws Exception {
+        if (!buffer.hasRemaining()) {
+            overflow();
+        }
+        buffer.put(b);
+    }
+
+    protected final void write(byte[] b, int off, int len) throws Exception {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                overflow();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Bulk copy a buffer remaining bytes, for instance a message body view.
+     *
+     * @param src
+     * @throws Exception
+     */
+    protected final void write(ByteBuffer src) throws Exception {
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                overflow();
+            }
+            src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+            buffer.put(src);
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * UTF-8 encode a character sequence straight into the buffer.
+     *
+     * @param s
+     * @throws Exception
+     */
+    protected final void write(CharSequence s) throws Exception {
+        encode(s, false);
+    }
+
+    /**
+     * UTF-8 encode a field value, or body, escaping the record and field terminators.
+     *
+     * @param s
+     * @throws Exception
+     */
+    protected final void writeEscaped(CharSequence s) throws Exception {
+        encode(s, true);
+    }
+
+    /**
+     * Bulk copy a binary body, or value, escaping the record and field terminators.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @throws Exception
+     */
+    protected final void writeEscaped(byte[] b, int off, int len) throws Exception {
+        int run = off;
+        for (int i = off, end = off + len; i < end; i++) {
+            if (isEscaped(b[i])) {
+                write(b, run, i - run);
+                writeEscape(b[i]);
+                run = i + 1;
+            }
+        }
+        write(b, run, off + len - run);
+    }
+
+    /**
+     * Bulk copy a buffer remaining bytes, escaping the record and field terminators.
+     *
+     * @param src
+     * @throws Exception
+     */
+    protected final void writeEscaped(ByteBuffer src) throws Exception {
+        int limit = src.limit();
+        for (int i = src.position(); i < limit; i++) {
+            if (isEscaped(src.get(i))) {
+                src.limit(i);
+                write(src);
+                src.limit(limit);
+                src.position(i + 1);
+                writeEscape(src.get(i));
+            }
+        }
+        write(src);
+    }
+
+    private static boolean isEscaped(int b) {
+        return b == '\n' || b == ';' || b == '\\';
+    }
+
+    private void writeEscape(int b) throws Exception {
+        write((byte) '\\');
+        write(b == '\n' ? (byte) 'n' : (byte) b);
+    }
+
+    private void encode(CharSequence s, boolean escape) throws Exception {
+        if (s == null) {
+            write("null");
+            return;
+        }
+        char c;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            if (buffer.remaining() < 4) {
+                overflow();
+            }
+            c = s.charAt(i);
+            if (escape && isEscaped(c)) {
+                buffer.put((byte) '\\');
+                buffer.put(c == '\n' ? (byte) 'n' : (byte) c);
+            } else if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put((byte) (0xF0 | (cp >> 18)));
+                    buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    // Malformed input
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Write a 'timestamp=value;' field, without allocating.
+     *
+     * @param timestamp Message timestamp, epoch in ms. Reception time is written instead if not positive.
+     * @throws Exception
+     */
+    protected final void writeTimestamp(long timestamp) throws Exception {
+        long value = timestamp > 0 ? timestamp : System.currentTimeMillis();
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        write("timestamp=");
+        write(digits, i, digits.length - i);
+        write((byte) ';');
+    }
+
+    /**
+     * Terminate the current record.
+     *
+     * @throws Exception
+     */
+    protected final void endRecord() throws Exception {
+        write((byte) '\n');
+        recordStart = buffer.position();
+        spilled = false;
+        if (flushInterval <= 0) {
+            commit();
+        } else if (journal != null && journal.isRollDue()) {
+            buffer = journal.roll(buffer.position());
+            recordStart = 0;
+        }
+    }
+
+    /**
+     * Drop the current record, upon failure. A record partly written already gets terminated instead, so that the next
+     * one starts on its own line.
+     */
+    protected final void abortRecord() {
+        if (spilled) {
+            try {
+                write((byte) '\n');
+            } catch (Exception ex) {
+                logger.error("Unable to terminate an aborted record in ".concat(fileName), ex);
+            }
+            recordStart = buffer.position();
+            spilled = false;
+        } else {
+            buffer.position(recordStart);
+        }
+    }
+
+    /**
+     * No room left : Write buffered data, hand over complete records for compression, or roll to the next journal segment.
+     */
+    private void overflow() throws Exception {
+        if (journal != null) {
+            buffer = journal.roll(recordStart);
+            recordStart = 0;
+        } else if (compressor != null) {
+            // Blocks end on a record boundary, unless the partial record would fill most of the next buffer
+            int end = recordStart > 0 && buffer.position() - recordStart <= buffer.capacity() / 2 ? recordStart : buffer.position();
+            spilled |= end > recordStart;
+            buffer = compressor.submit(buffer, end);
+            recordStart = 0;
+        } else {
+            boolean partial = buffer.position() > recordStart;
+            commit();
+            spilled |= partial;
+        }
+    }
+
+    /**
+     * Write buffered records, compressed ones once all blocks are written. MAPPED mode records are already in the page cache,
+     * they only might be synced, or rolled to a new segment.
+     */
+    private void commit() throws Exception {
+        if (journal != null) {
+            if (journal.isRollDue()) {
+                buffer = journal.roll(buffer.position());
+                recordStart = 0;
+            } else if (sync) {
+                journal.force();
+            }
+        } else if (compressor != null) {
+            if (buffer.position() > 0) {
+                buffer = compressor.submit(buffer, buffer.position());
+            }
+            compressor.drain();
+        } else if (buffer.position() > 0) {
+            buffer.flip();
+            Object event = FlightRecorder.begin(FlightRecorder.EventType.FILE_WRITE);
+            int bytes = buffer.remaining();
+            long filePosition = out.position();
+            try {
+                out.writeDirect(buffer, sync);
+            } catch (Exception ex) {
+                // Keep buffered records, to be written over the failed write
+                buffer.limit(buffer.capacity());
+                buffer.position(bytes);
+                try {
+                    out.position(filePosition);
+                } catch (IOException e) {
+                    logger.warn("Unable to rewind ".concat(fileName), e);
+                }
+                throw ex;
+            }
+            if (event != null) {
+                FlightRecorder.commit(event, fileName, bytes, sync);
+            }
+            buffer.clear();
+        }
+        recordStart = buffer.position();
+    }
+
+    /**
+     * Write buffered records, then notify subclasses.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        Object event = FlightRecorder.begin(FlightRecorder.EventType.FILE_FLUSH);
+        try {
+            commit();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        if (event != null) {
+            FlightRecorder.commit(event, fileName);
+        }
+    }
+
     @Override
     public void release() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
         try {
-            out.close();
+            flush();
+            if (journal != null) {
+                synchronized (this) {
+                    journal.close();
+                    // The segment is unmapped : Late records fail, rather than write to it
+                    buffer = ByteBuffer.allocate(0);
+                    recordStart = 0;
+                }
+            } else {
+                if (compressor != null) {
+                    compressor.close();
+                }
+                out.close();
+            }
         } catch (Exception ex) {
             logger.warn("Unable to properly close " + fileName, ex);
-        } 
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Java Flight Recorder custom events, for latency outliers to be correlated with GC and I/O in a single recording.
+ * Events are recorded under the 'jalam' category :
+ * <ul>
+ *  <li> 'jalam.MessageReceived' : destination, size (body bytes, -1 if unknown).
+ *  <li> 'jalam.Listener' : listener. Duration of the listener invocation.
+ *  <li> 'jalam.Acknowledge' : mode. Duration of the acknowledgement.
+ *  <li> 'jalam.FileWrite' : file, bytes, sync. Duration of the write.
+ *  <li> 'jalam.FileFlush' : file. Duration of the flush, buffered records being written.
+ *  <li> 'jalam.Connect' : connection, succeeded. Duration of a connection and subscription attempt.
+ *  <li> 'jalam.Reconnect' : connection, outcome. Duration of a connection failure handling by a connection manager.
+ * </ul>
+ *
+ * Event types are defined at runtime (jdk.jfr.EventFactory, JDK 11+), the client still running on older JVMs. Hence events
+ * are opaque objects, to be committed only if begun :
+ * <pre>
+ * Object event = FlightRecorder.begin(EventType.LISTENER);
+ * ...
+ * if (event != null) {
+ *     FlightRecorder.commit(event, name);
+ * }
+ * </pre>
+ * Nothing gets allocated unless the event type is enabled in a running recording.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'metrics.jfr' : Enables events. Default false.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class FlightRecorder {
+
+    private static final Logger logger = Logger.getLogger(FlightRecorder.class);
+
+    public enum EventType {
+        RECEIVE("jalam.MessageReceived", "Message Received", new String[]{"destination", "size"}, new Class[]{String.class, long.class}),
+        LISTENER("jalam.Listener", "Listener", new String[]{"listener"}, new Class[]{String.class}),
+        ACKNOWLEDGE("jalam.Acknowledge", "Acknowledge", new String[]{"mode"}, new Class[]{String.class}),
+        FILE_WRITE("jalam.FileWrite", "File Write", new String[]{"file", "bytes", "sync"}, new Class[]{String.class, long.class, boolean.class}),
+        FILE_FLUSH("jalam.FileFlush", "File Flush", new String[]{"file"}, new Class[]{String.class}),
+        CONNECT("jalam.Connect", "Connection Attempt", new String[]{"connection", "succeeded"}, new Class[]{String.class, boolean.class}),
+        RECONNECT("jalam.Reconnect", "Reconnect", new String[]{"connection", "outcome"}, new Class[]{String.class, String.class});
+
+        private final String eventName;
+
+        private final String label;
+
+        private final String[] fields;
+
+        private final Class[] types;
+
+        /**
+         * factory.newEvent(), bound. Null unless events are enabled.
+         */
+        private MethodHandle newEvent;
+
+        /**
+         * An event instance, to tell whether the event type is enabled without allocating.
+         */
+        private Object probe;
+
+        private EventType(String eventName, String label, String[] fields, Class[] types) {
+            this.eventName = eventName;
+            this.label = label;
+            this.fields = fields;
+            this.types = types;
+        }
+    }
+
+    private static final boolean enabled;
+
+    private static MethodHandle eventEnabled;
+
+    private static MethodHandle beginEvent;
+
+    private static MethodHandle setField;
+
+    private static MethodHandle commitEvent;
+
+    static {
+        boolean available = false;
+        if (isEnabled()) {
+            try {
+                define();
+                available = true;
+                logger.info("Flight recorder events enabled");
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                logger.warn("Flight recorder events require a JVM with JFR support (JDK 11+), disabling them : ".concat(String.valueOf(ex)));
+            }
+        }
+        enabled = available;
+    }
+
+    private FlightRecorder() {
+    }
+
+    /**
+     * @return true if events are enabled by configuration.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("metrics.jfr");
+    }
+
+    /**
+     * Define and register the event types.
+     */
+    private static void define() throws ReflectiveOperationException {
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+        Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        Method create = factoryClass.getMethod("create", List.class, List.class);
+        Method register = factoryClass.getMethod("register");
+        Method newEvent = factoryClass.getMethod("newEvent");
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (EventType type : EventType.values()) {
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(annotationType("jdk.jfr.Name"), type.eventName),
+                    annotation.newInstance(annotationType("jdk.jfr.Label"), type.label),
+                    annotation.newInstance(annotationType("jdk.jfr.Category"), new String[]{"jalam"}),
+                    annotation.newInstance(annotationType("jdk.jfr.StackTrace"), Boolean.FALSE));
+            List<Object> fields = new ArrayList<>(type.fields.length);
+            for (int i = 0; i < type.fields.length; i++) {
+                fields.add(field.newInstance(type.types[i], type.fields[i], Collections.emptyList()));
+            }
+            Object factory = create.invoke(null, annotations, fields);
+            register.invoke(factory);
+            type.newEvent = lookup.unreflect(newEvent).bindTo(factory).asType(MethodType.methodType(Object.class));
+            type.probe = newEvent.invoke(factory);
+        }
+
+        eventEnabled = lookup.unreflect(eventClass.getMethod("isEnabled")).asType(MethodType.methodType(boolean.class, Object.class));
+        beginEvent = lookup.unreflect(eventClass.getMethod("begin")).asType(MethodType.methodType(void.class, Object.class));
+        setField = lookup.unreflect(eventClass.getMethod("set", int.class, Object.class)).asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+        commitEvent = lookup.unreflect(eventClass.getMethod("commit")).asType(MethodType.methodType(void.class, Object.class));
+    }
+
+    private static Class<? extends Annotation> annotationType(String name) throws ClassNotFoundException {
+        return Class.forName(name).asSubclass(Annotation.class);
+    }
+
+    /**
+     * Begin an event.
+     *
+     * @param type
+     * @return The event, or null if the event type isn't being recorded.
+     */
+    public static Object begin(EventType type) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            if (!(boolean) eventEnabled.invokeExact(type.probe)) {
+                return null;
+            }
+            Object event = (Object) type.newEvent.invokeExact();
+            beginEvent.invokeExact(event);
+            return event;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * End an event, and record it with its fields values, in the event type fields order.
+     *
+     * @param event Event, as returned by {@link #begin(EventType)}. Not null.
+     * @param values
+     */
+    public static void commit(Object event, Object... values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                setField.invokeExact(event, i, values[i]);
+            }
+            commitEvent.invokeExact(event);
+        } catch (Throwable t) {
+            logger.debug("Unable to commit event", t);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Blocks are encoded as gzip members, which standard tools (gunzip, zcat) decode as a whole.
+ * As with BGZF, every member header holds an extra subfield ('JL', 4 bytes, little endian) with the member
+ * total size : Readers can skip from member to member without decoding, then decode from there.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.file.compression.level' : Deflate level, 1 (fastest) to 9. Default 1.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class GzipBlockCodec implements BlockCodec {
+
+    private static final int HEADER_SIZE = 20;
+
+    private static final int TRAILER_SIZE = 8;
+
+    private final Deflater deflater;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] out = new byte[0];
+
+    public GzipBlockCodec() {
+        deflater = new Deflater(Math.max(Math.min(Integer.getInteger("listener.file.compression.level", Deflater.BEST_SPEED), Deflater.BEST_COMPRESSION), Deflater.BEST_SPEED), true);
+    }
+
+    @Override
+    public ByteBuffer encode(ByteBuffer block) {
+        byte[] in = block.array();
+        int off = block.arrayOffset() + block.position();
+        int len = block.remaining();
+
+        // Deflate worst case : Stored blocks, 5 bytes overhead per 16KB
+        int bound = HEADER_SIZE + len + 5 * (len / 16383 + 1) + TRAILER_SIZE;
+        if (out.length < bound) {
+            out = new byte[bound];
+        }
+
+        deflater.reset();
+        deflater.setInput(in, off, len);
+        deflater.finish();
+        int size = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (size == out.length - TRAILER_SIZE) {
+                byte[] larger = new byte[out.length * 2];
+                System.arraycopy(out, 0, larger, 0, size);
+                out = larger;
+            }
+            size += deflater.deflate(out, size, out.length - TRAILER_SIZE - size);
+        }
+
+        crc.reset();
+        crc.update(in, off, len);
+        putInt(size, (int) crc.getValue());
+        putInt(size + 4, len);
+        size += TRAILER_SIZE;
+
+        // ID1, ID2, CM (deflate), FLG (FEXTRA), MTIME, XFL, OS (unknown)
+        out[0] = (byte) 0x1f;
+        out[1] = (byte) 0x8b;
+        out[2] = 8;
+        out[3] = 4;
+        putInt(4, 0);
+        out[8] = 0;
+        out[9] = (byte) 0xff;
+        // XLEN, then subfield : SI1, SI2, LEN, member size
+        out[10] = 8;
+        out[11] = 0;
+        out[12] = 'J';
+        out[13] = 'L';
+        out[14] = 4;
+        out[15] = 0;
+        putInt(16, size);
+
+        return ByteBuffer.wrap(out, 0, size);
+    }
+
+    private void putInt(int idx, int value) {
+        out[idx] = (byte) value;
+        out[idx + 1] = (byte) (value >>> 8);
+        out[idx + 2] = (byte) (value >>> 16);
+        out[idx + 3] = (byte) (value >>> 24);
+    }
+
+    @Override
+    public void release() {
+        deflater.end();
+    }
+}
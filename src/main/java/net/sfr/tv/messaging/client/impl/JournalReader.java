@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Sequential reader of the journals written by FileOutConsumerImpl : A single file, or the segments of a MAPPED mode
+ * journal, in order. Records are '\n' terminated lines, whose values and bodies are escaped (see FileOutConsumerImpl) :
+ * Use unescape() to restore them.
+ * <ul>
+ *  <li> Plain files are read through large memory-mapped windows. Records are returned as views of the window, without copy.
+ *  <li> Compressed files (GZIP members, see GzipBlockCodec) are streamed through a large heap buffer.
+ * </ul>
+ * The zero filled tail of a segment which wasn't properly closed, hence not truncated, is skipped. Empty lines are skipped.
+ *
+ * Not thread safe.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class JournalReader implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(JournalReader.class);
+
+    /**
+     * Mapped window size, grown for records exceeding it.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    private final List<File> files;
+
+    private int fileIdx;
+
+    /**
+     * Plain file, null otherwise.
+     */
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    private long windowOffset;
+
+    /**
+     * Compressed file, null otherwise.
+     */
+    private InputStream in;
+
+    /**
+     * Current window, or stream buffer, ready for reading.
+     */
+    private ByteBuffer current;
+
+    private long records;
+
+    /**
+     * @param file Journal file, or MAPPED mode journal base name ('listener.file.output')
+     * @throws FileNotFoundException Neither the file nor segments exist
+     */
+    public JournalReader(File file) throws FileNotFoundException {
+        files = sources(file);
+        if (files.isEmpty()) {
+            throw new FileNotFoundException(file.getPath().concat(" : No such file or journal segments"));
+        }
+    }
+
+    /**
+     * @param file
+     * @return The file, if it exists, or its journal segments, in order.
+     */
+    public static List<File> sources(File file) {
+        if (file.isFile()) {
+            return Arrays.asList(file);
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        final Pattern segment = Pattern.compile(Pattern.quote(file.getName()).concat("\\.\\d{6}"));
+        File[] segments = directory != null ? directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return segment.matcher(name).matches();
+            }
+        }) : null;
+        if (segments == null) {
+            return new ArrayList<>();
+        }
+        // Fixed width sequence numbers
+        Arrays.sort(segments);
+        return Arrays.asList(segments);
+    }
+
+    /**
+     * @return The next record, without its terminator, valid until the next call. Null once all files have been read.
+     * @throws IOException
+     */
+    public ByteBuffer next() throws IOException {
+        while (true) {
+            if (current == null && !open()) {
+                return null;
+            }
+            int start = current.position();
+            int nl = indexOf(current, start, current.limit());
+            if (nl < 0) {
+                if (refill()) {
+                    continue;
+                }
+                // End of file : Unterminated tail, if any
+                start = current.position();
+                nl = current.limit();
+                while (nl > start && current.get(nl - 1) == 0) {
+                    nl--;
+                }
+                ByteBuffer tail = current.duplicate();
+                closeFile();
+                if (nl == start) {
+                    continue;
+                }
+                tail.limit(nl).position(start);
+                records++;
+                return tail;
+            } else {
+                current.position(nl + 1);
+                if (nl == start) {
+                    continue;
+                }
+            }
+            ByteBuffer record = current.duplicate();
+            record.limit(nl).position(start);
+            records++;
+            return record;
+        }
+    }
+
+    /**
+     * Restore escaped record content : '\n', '\;' and '\\' sequences. Other backslashes are kept as is.
+     *
+     * @param src Escaped content, from its position to its limit. Left unchanged.
+     * @return src itself if there is nothing to unescape, a new buffer otherwise.
+     */
+    public static ByteBuffer unescape(ByteBuffer src) {
+        int from = src.position();
+        int limit = src.limit();
+        int i = from;
+        while (i < limit && src.get(i) != '\\') {
+            i++;
+        }
+        if (i == limit) {
+            return src;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(limit - from);
+        for (i = from; i < limit; i++) {
+            byte b = src.get(i);
+            if (b == '\\' && i + 1 < limit) {
+                byte next = src.get(i + 1);
+                if (next == 'n' || next == ';' || next == '\\') {
+                    b = next == 'n' ? (byte) '\n' : next;
+                    i++;
+                }
+            }
+            dst.put(b);
+        }
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * @return The offset of the first unescaped occurrence of b, or -1.
+     */
+    public static int indexOfUnescaped(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            byte c = buffer.get(i);
+            if (c == b) {
+                return i;
+            }
+            if (c == '\\') {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Open the next file.
+     *
+     * @return false if there is none left.
+     */
+    private boolean open() throws IOException {
+        if (fileIdx >= files.size()) {
+            return false;
+        }
+        File file = files.get(fileIdx++);
+        logger.info("Reading ".concat(file.getPath()));
+        if (isCompressed(file)) {
+            in = new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+            current = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            current.limit(0);
+            refill();
+        } else {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            fileSize = channel.size();
+            windowOffset = 0;
+            current = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, WINDOW_SIZE));
+        }
+        return true;
+    }
+
+    private static boolean isCompressed(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    /**
+     * Make more data available after the current record start : Map the next window, or read the stream further.
+     *
+     * @return false at end of file.
+     */
+    private boolean refill() throws IOException {
+        int pending = current.remaining();
+        if (in != null) {
+            current.compact();
+            if (!current.hasRemaining()) {
+                // Record larger than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(current.capacity() * 2);
+                current.flip();
+                larger.put(current);
+                current = larger;
+            }
+            int read = in.read(current.array(), current.position(), current.remaining());
+            if (read > 0) {
+                current.position(current.position() + read);
+            }
+            current.flip();
+            return read >= 0;
+        }
+        long offset = windowOffset + current.position();
+        if (offset + pending >= fileSize) {
+            return false;
+        }
+        // Record larger than the window
+        long size = Math.min(fileSize - offset, pending >= WINDOW_SIZE / 2 ? (long) pending * 2 : WINDOW_SIZE);
+        current = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowOffset = offset;
+        return true;
+    }
+
+    private void closeFile() throws IOException {
+        current = null;
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * @return Number of records read so far.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeFile();
+        fileIdx = files.size();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.log4j.Logger;
+
+/**
+ * End-to-end latency consumer : Latencies are recorded into a lock-free, high dynamic range histogram,
+ * and reported per interval.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.latency.source' : Where to read the emission timestamp (epoch, ms) from. BODY (default), 'ts=[timestamp]' entry
+ * of a 'key=value;' formatted body ; PROPERTY, a long property ; JMS_TIMESTAMP, the message header (unset if 0).
+ *  <li> 'listener.latency.property' : Timestamp property name (PROPERTY source), or body key (BODY source). Default 'ts'.
+ *  <li> 'listener.latency.interval' : Reporting interval, in ms. Default 5000.
+ *  <li> 'listener.latency.log' : Optional HdrHistogram interval log file, for offline analysis/comparison.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class LatencyConsumerImpl implements MessageConsumer {
+
+    private static final Logger logger = Logger.getLogger(LatencyConsumerImpl.class);
+
+    public enum TimestampSource {
+        BODY, PROPERTY, JMS_TIMESTAMP
+    }
+
+    protected final TimestampSource source;
+
+    protected final String timestampProperty;
+
+    /**
+     * BODY source : "[property]=" key, as bytes.
+     */
+    protected final byte[] timestampKey;
+
+    private final Recorder recorder = new Recorder(3);
+
+    private final HistogramLogWriter intervalLog;
+
+    private final ScheduledExecutorService reporter;
+
+    private Histogram interval;
+
+    /**
+     * Messages without timestamp, over the current interval.
+     */
+    private final AtomicLong skipped = new AtomicLong();
+
+    public LatencyConsumerImpl() {
+        source = TimestampSource.valueOf(System.getProperty("listener.latency.source", TimestampSource.BODY.name()).toUpperCase());
+        timestampProperty = System.getProperty("listener.latency.property", "ts");
+        timestampKey = timestampProperty.concat("=").getBytes();
+
+        HistogramLogWriter log = null;
+        String logFile = System.getProperty("listener.latency.log");
+        if (logFile != null && logFile.trim().length() > 0) {
+            try {
+                log = new HistogramLogWriter(new File(logFile));
+                log.outputLogFormatVersion();
+                log.outputStartTime(System.currentTimeMillis());
+                log.outputLegend();
+            } catch (FileNotFoundException ex) {
+                logger.error("Unable to open latency log ".concat(logFile), ex);
+            }
+        }
+        intervalLog = log;
+
+        long period = Long.getLong("listener.latency.interval", 5000L);
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jalam-latency-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a message latency.
+     *
+     * @param origStamp Emission timestamp (epoch, ms). Negative if unavailable.
+     */
+    protected final void record(long origStamp) {
+        if (origStamp < 0) {
+            skipped.incrementAndGet();
+            return;
+        }
+        // Clock skew between hosts
+        recorder.recordValue(Math.max(System.currentTimeMillis() - origStamp, 0));
+    }
+
+    /**
+     * Parse a timestamp from a 'key=value;' formatted text, without allocating.
+     *
+     * @param text
+     * @return The timestamp, or -1 if not found.
+     */
+    protected final long parseTimestamp(CharSequence text) {
+        int len = text.length();
+        int keyLen = timestampKey.length;
+        for (int i = 0; i + keyLen <= len; i++) {
+            if (i == 0 || text.charAt(i - 1) == ';') {
+                int k = 0;
+                while (k < keyLen && text.charAt(i + k) == timestampKey[k]) {
+                    k++;
+                }
+                if (k == keyLen) {
+                    long value = 0;
+                    int start = i + keyLen;
+                    int j = start;
+                    char c;
+                    while (j < len && (c = text.charAt(j)) >= '0' && c <= '9') {
+                        value = value * 10 + (c - '0');
+                        j++;
+                    }
+                    return j > start ? value : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a timestamp from a 'key=value;' formatted, ASCII compatible, byte array.
+     *
+     * @param bytes
+     * @param len
+     * @return The timestamp, or -1 if not found.
+     */
+    protected final long parseTimestamp(byte[] bytes, int len) {
+        int keyLen = timestampKey.length;
+        for (int i = 0; i + keyLen <= len; i++) {
+            if (i == 0 || bytes[i - 1] == ';') {
+                int k = 0;
+                while (k < keyLen && bytes[i + k] == timestampKey[k]) {
+                    k++;
+                }
+                if (k == keyLen) {
+                    long value = 0;
+                    int start = i + keyLen;
+                    int j = start;
+                    while (j < len && bytes[j] >= '0' && bytes[j] <= '9') {
+                        value = value * 10 + (bytes[j] - '0');
+                        j++;
+                    }
+                    return j > start ? value : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void report() {
+        interval = recorder.getIntervalHistogram(interval);
+        long intervalSkipped = skipped.getAndSet(0);
+
+        logger.info("Latency (ms) :: count : ".concat(String.valueOf(interval.getTotalCount()))
+                .concat(", p50 : ").concat(String.valueOf(interval.getValueAtPercentile(50.0)))
+                .concat(", p99 : ").concat(String.valueOf(interval.getValueAtPercentile(99.0)))
+                .concat(", p99.9 : ").concat(String.valueOf(interval.getValueAtPercentile(99.9)))
+                .concat(", max : ").concat(String.valueOf(interval.getMaxValue()))
+                .concat(intervalSkipped > 0 ? ", without timestamp : ".concat(String.valueOf(intervalSkipped)) : ""));
+
+        if (intervalLog != null) {
+            intervalLog.outputIntervalHistogram(interval);
+        }
+    }
+
+    @Override
+    public void release() {
+        reporter.shutdown();
+        report();
+        if (intervalLog != null) {
+            intervalLog.close();
+        }
+    }
+}
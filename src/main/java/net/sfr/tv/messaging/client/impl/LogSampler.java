@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Logging consumers sampling : Only a subset of the messages gets formatted and output, the other ones are skipped without
+ * being read. Three modes are available :
+ * <ul>
+ *  <li> EVERY : One message out of N.
+ *  <li> RATE : At most K messages per second.
+ *  <li> RESERVOIR : K messages per interval, uniformly picked among the interval messages (reservoir sampling). Candidates
+ * are formatted when picked, and output at the end of the interval, in arrival order.
+ * </ul>
+ * A summary of the logged and skipped messages counts is output once per interval, if any message was skipped. Intervals
+ * are checked upon message delivery : The last interval output may be delayed until the next message, or release.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.logger.sampling' : EVERY, RATE, RESERVOIR. Sampling is disabled unless set.
+ *  <li> 'listener.logger.sampling.every' : EVERY mode, N. Default 100.
+ *  <li> 'listener.logger.sampling.rate' : RATE mode, K. Default 10.
+ *  <li> 'listener.logger.sampling.reservoir' : RESERVOIR mode, K. Default 10.
+ *  <li> 'listener.logger.sampling.interval' : Reservoir and summary interval, in milliseconds. Default 1000.
+ * </ul>
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class LogSampler implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(LogSampler.class);
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Reservoir buffers grown beyond this size are trimmed once written.
+     */
+    private static final int MAX_RETAINED = 65536;
+
+    public enum Mode {
+        EVERY, RATE, RESERVOIR
+    }
+
+    private final Logger target;
+
+    private final Mode mode;
+
+    /**
+     * EVERY : N ; RATE, RESERVOIR : K.
+     */
+    private final int size;
+
+    private final long interval;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong logged = new AtomicLong();
+
+    /**
+     * Counts as of the last summary. Guarded by this.
+     */
+    private long lastReceived;
+
+    private long lastLogged;
+
+    private volatile long intervalStart = System.nanoTime();
+
+    /**
+     * RATE mode current one second window. Window start guarded by this.
+     */
+    private volatile long windowStart = intervalStart;
+
+    private final AtomicLong windowCount = new AtomicLong();
+
+    /**
+     * RESERVOIR mode candidates, and their arrival sequence in the interval. Guarded by this.
+     */
+    private final StringBuilder[] reservoir;
+
+    private final long[] sequences;
+
+    private long seen;
+
+    public static boolean isEnabled() {
+        return System.getProperty("listener.logger.sampling") != null;
+    }
+
+    /**
+     * @param target Logger reservoir records and summaries get logged to.
+     */
+    public LogSampler(Logger target) {
+        this.target = target;
+        this.mode = Mode.valueOf(System.getProperty("listener.logger.sampling", Mode.EVERY.name()).toUpperCase());
+        switch (mode) {
+            case EVERY:
+                size = Math.max(Integer.getInteger("listener.logger.sampling.every", 100), 1);
+                break;
+            case RATE:
+                size = Math.max(Integer.getInteger("listener.logger.sampling.rate", 10), 1);
+                break;
+            default:
+                size = Math.max(Integer.getInteger("listener.logger.sampling.reservoir", 10), 1);
+        }
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(Long.getLong("listener.logger.sampling.interval", 1000), 1));
+
+        reservoir = new StringBuilder[mode == Mode.RESERVOIR ? size : 0];
+        sequences = new long[reservoir.length];
+        for (int i = 0; i < reservoir.length; i++) {
+            reservoir[i] = new StringBuilder(256);
+        }
+        logger.info("Sampling : ".concat(toString()));
+    }
+
+    /**
+     * @param template Output template, RESERVOIR mode.
+     * @param msg
+     * @return true if the message is to be output ; false if it is skipped, or retained for output at the end of the
+     * interval (RESERVOIR mode).
+     * @throws Exception Formatting failure, RESERVOIR mode.
+     */
+    public <T> boolean sample(OutputTemplate<T> template, T msg) throws Exception {
+        long now = System.nanoTime();
+        if (now - intervalStart >= interval) {
+            endInterval(now, false);
+        }
+
+        long count = received.incrementAndGet();
+        boolean accepted;
+        switch (mode) {
+            case EVERY:
+                accepted = (count - 1) % size == 0;
+                break;
+            case RATE:
+                if (now - windowStart >= ONE_SECOND) {
+                    synchronized (this) {
+                        if (now - windowStart >= ONE_SECOND) {
+                            windowCount.set(0);
+                            windowStart = now;
+                        }
+                    }
+                }
+                accepted = windowCount.incrementAndGet() <= size;
+                break;
+            default:
+                offer(template, msg);
+                return false;
+        }
+        if (accepted) {
+            logged.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    /**
+     * Reservoir sampling (algorithm R) : The n-th message of the interval replaces a random candidate with probability K/n.
+     */
+    private synchronized <T> void offer(OutputTemplate<T> template, T msg) throws Exception {
+        long n = ++seen;
+        int idx = n <= size ? (int) (n - 1) : (int) ThreadLocalRandom.current().nextLong(n);
+        if (idx < size) {
+            StringBuilder out = reservoir[idx];
+            out.setLength(0);
+            template.format(msg, out);
+            sequences[idx] = n;
+        }
+    }
+
+    /**
+     * @param force Even if the interval is not over yet
+     */
+    private synchronized void endInterval(long now, boolean force) {
+        if (!force && now - intervalStart < interval) {
+            // Ended by another thread meanwhile
+            return;
+        }
+        long elapsed = now - intervalStart;
+        intervalStart = now;
+
+        long output;
+        if (mode == Mode.RESERVOIR) {
+            output = Math.min(seen, size);
+            writeReservoir();
+        } else {
+            output = logged.get() - lastLogged;
+            lastLogged += output;
+        }
+        long total = received.get() - lastReceived;
+        lastReceived += total;
+        if (total > output) {
+            target.info("Sampling : ".concat(String.valueOf(output)).concat(" messages logged, ")
+                    .concat(String.valueOf(total - output)).concat(" skipped, over the last ")
+                    .concat(String.valueOf(TimeUnit.NANOSECONDS.toMillis(elapsed))).concat(" ms"));
+        }
+    }
+
+    /**
+     * Guarded by this
+     */
+    private void writeReservoir() {
+        int count = (int) Math.min(seen, size);
+        if (count > 1) {
+            // Insertion sort on arrival sequence, K is small
+            for (int i = 1; i < count; i++) {
+                for (int j = i; j > 0 && sequences[j - 1] > sequences[j]; j--) {
+                    long seq = sequences[j];
+                    sequences[j] = sequences[j - 1];
+                    sequences[j - 1] = seq;
+                    StringBuilder out = reservoir[j];
+                    reservoir[j] = reservoir[j - 1];
+                    reservoir[j - 1] = out;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            target.info(reservoir[i].toString());
+            if (reservoir[i].capacity() > MAX_RETAINED) {
+                reservoir[i] = new StringBuilder(256);
+            } else {
+                reservoir[i].setLength(0);
+            }
+        }
+        Arrays.fill(sequences, 0);
+        seen = 0;
+    }
+
+    /**
+     * Output the current interval retained messages and summary.
+     */
+    @Override
+    public void close() {
+        endInterval(System.nanoTime(), true);
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case EVERY:
+                return "EVERY, 1 message out of ".concat(String.valueOf(size));
+            case RATE:
+                return "RATE, at most ".concat(String.valueOf(size)).concat(" messages per second");
+            default:
+                return "RESERVOIR, ".concat(String.valueOf(size)).concat(" messages per ")
+                        .concat(String.valueOf(TimeUnit.NANOSECONDS.toMillis(interval))).concat(" ms");
+        }
+    }
+}
@@ -21,16 +21,52 @@ import org.apache.log4j.Logger;
 /**
  * Logging consumer initialization code factorized.
  * 
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.logger.name' : Logger name. Default, this class name.
+ *  <li> 'listener.output.type' : FULL (default), headers, properties and body ; BODY ; PROPERTY, 'listener.output.property' value.
+ *  <li> 'listener.output.template' : User defined output, overrides the output type, see {@link OutputTemplate}.
+ * Messages are then formatted into a single logging event.
+ *  <li> 'listener.logger.async' : Messages are formatted once into a single record, output by a dedicated thread. Default false.
+ * See {@link AsyncLogWriter} settings.
+ *  <li> 'listener.logger.sampling' : Only a sample of the messages is output, the other ones are acknowledged without being
+ * read. See {@link LogSampler} settings.
+ * </ul>
+ * 
  * @author matthieu.chaplin@sfr.com
  */
 public abstract class LoggerConsumerImpl implements MessageConsumer {
  
+    public enum OutputType {
+        FULL, BODY, PROPERTY
+    }
+    
     protected Logger logger;
     
     protected final String outputType;
+    
+    /**
+     * outputType, parsed.
+     */
+    protected final OutputType output;
+    
+    /**
+     * Null unless set.
+     */
+    protected final String outputTemplate;
         
     protected final String outputProperty;
     
+    /**
+     * Null unless asynchronous output is enabled.
+     */
+    protected final AsyncLogWriter asyncWriter;
+    
+    /**
+     * Null unless sampling is enabled.
+     */
+    protected final LogSampler sampler;
+    
     public LoggerConsumerImpl() {
         String loggerName = System.getProperty("listener.logger.name");
         if (loggerName != null && loggerName.trim().length() > 0) {
@@ -40,7 +76,64 @@ public abstract class LoggerConsumerImpl implements MessageConsumer {
         }
         
         outputType = System.getProperty("listener.output.type", "FULL");
+        output = OutputType.valueOf(outputType.toUpperCase());
         outputProperty = System.getProperty("listener.output.property");
+        String template = System.getProperty("listener.output.template");
+        outputTemplate = template != null && template.length() > 0 ? template : null;
+        asyncWriter = AsyncLogWriter.isEnabled() ? new AsyncLogWriter(logger) : null;
+        sampler = LogSampler.isEnabled() ? new LogSampler(logger) : null;
+    }
+    
+    /**
+     * @return true if messages are to be formatted through a compiled template : User defined, asynchronous or sampled
+     * output.
+     */
+    protected final boolean isTemplated() {
+        return outputTemplate != null || asyncWriter != null || sampler != null;
+    }
+    
+    /**
+     * Templated output : Messages are sampled, then formatted into a single record, output asynchronously or logged.
+     * 
+     * @param template
+     * @param msg
+     * @throws Exception 
+     */
+    protected final <T> void output(OutputTemplate<T> template, T msg) throws Exception {
+        if (sampler != null && !sampler.sample(template, msg)) {
+            return;
+        }
+        if (asyncWriter != null) {
+            AsyncLogWriter.Record record = asyncWriter.claim();
+            if (record != null) {
+                boolean formatted = false;
+                try {
+                    template.format(msg, record.text());
+                    formatted = true;
+                } finally {
+                    if (formatted) {
+                        asyncWriter.publish(record);
+                    } else {
+                        asyncWriter.abandon(record);
+                    }
+                }
+            }
+        } else {
+            logger.info(template.format(msg));
+        }
+    }
+    
+    /**
+     * Write pending records.
+     */
+    @Override
+    public void release() {
+        if (sampler != null) {
+            sampler.close();
+        }
+        if (asyncWriter != null) {
+            asyncWriter.close();
+        }
     }
     
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * Rolling journal of fixed size, pre-allocated and memory-mapped segments, named [file].[sequence].
+ *
+ * Segments are rolled when full, or after a max. duration, and truncated to their actual content when closed. Closed
+ * segments are unmapped right away, rather than upon garbage collection : Their buffers must not be used afterwards.
+ * Only the most recent segments are kept, if a retention count is set.
+ *
+ * Not thread safe.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public class MappedJournal {
+
+    private static final Logger logger = Logger.getLogger(MappedJournal.class);
+
+    private final File directory;
+
+    private final String baseName;
+
+    private final int segmentSize;
+
+    private final long rollInterval;
+
+    private final int retention;
+
+    private final Deque<File> segments = new ArrayDeque<>();
+
+    private long sequence;
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * Current segment max. duration deadline, Long.MAX_VALUE if none.
+     */
+    private long rollAt;
+
+    private boolean closed;
+
+    /**
+     * @param output Journal base file
+     * @param segmentSize Segment size, in bytes
+     * @param rollInterval Max. segment duration, in ms. 0 rolls on size only.
+     * @param retention Number of segments to keep. 0 keeps all.
+     * @throws IOException
+     */
+    public MappedJournal(File output, int segmentSize, long rollInterval, int retention) throws IOException {
+        this.directory = output.getAbsoluteFile().getParentFile();
+        this.baseName = output.getName();
+        this.segmentSize = segmentSize;
+        this.rollInterval = rollInterval;
+        this.retention = retention;
+
+        // Resume after existing segments
+        final Pattern pattern = Pattern.compile(Pattern.quote(baseName) + "\\.(\\d+)");
+        File[] existing = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return pattern.matcher(name).matches();
+            }
+        });
+        if (existing != null) {
+            Arrays.sort(existing);
+            for (File segment : existing) {
+                Matcher m = pattern.matcher(segment.getName());
+                m.matches();
+                sequence = Math.max(sequence, Long.parseLong(m.group(1)) + 1);
+                segments.add(segment);
+            }
+        }
+
+        open();
+        purge();
+    }
+
+    /**
+     * @return The current segment, positioned after the last written byte.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return true if the current segment is not empty, and has reached its max. duration.
+     */
+    public boolean isRollDue() {
+        return !closed && buffer.position() > 0 && System.currentTimeMillis() >= rollAt;
+    }
+
+    /**
+     * Close the current segment, and open the next one.
+     *
+     * @param carryFrom Start offset of an incomplete record, to be moved to the next segment.
+     *  Records larger than a segment (carryFrom == 0) are split instead.
+     * @return The new segment
+     * @throws IOException
+     */
+    public ByteBuffer roll(int carryFrom) throws IOException {
+        if (closed) {
+            throw new IOException("Journal closed : ".concat(baseName));
+        }
+        RandomAccessFile previousFile = file;
+        MappedByteBuffer previous = buffer;
+
+        int end = previous.position();
+        int keep = carryFrom > 0 ? carryFrom : end;
+
+        open();
+
+        if (keep < end) {
+            ByteBuffer carry = previous.duplicate();
+            carry.limit(end);
+            carry.position(keep);
+            buffer.put(carry);
+        }
+
+        close(previousFile, previous, keep);
+        purge();
+        return buffer;
+    }
+
+    /**
+     * Force the current segment content to disk.
+     */
+    public void force() {
+        if (!closed) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Close, and unmap, the current segment.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            close(file, buffer, buffer.position());
+        }
+    }
+
+    private void open() throws IOException {
+        File segment = new File(directory, baseName.concat(String.format(".%06d", sequence++)));
+        file = new RandomAccessFile(segment, "rw");
+        file.setLength(segmentSize);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        rollAt = rollInterval > 0 ? System.currentTimeMillis() + rollInterval : Long.MAX_VALUE;
+        segments.add(segment);
+        logger.info("Journal segment opened : ".concat(segment.getAbsolutePath()));
+    }
+
+    /**
+     * Enforce the retention count.
+     */
+    private void purge() {
+        while (retention > 0 && segments.size() > retention) {
+            File oldest = segments.poll();
+            if (!oldest.delete()) {
+                logger.warn("Unable to delete journal segment ".concat(oldest.getAbsolutePath()));
+            }
+        }
+    }
+
+    private void close(RandomAccessFile segment, MappedByteBuffer mapped, int length) throws IOException {
+        mapped.force();
+        // Truncating a mapped file is platform dependent
+        unmap(mapped);
+        try {
+            segment.getChannel().truncate(length);
+        } catch (IOException ex) {
+            logger.warn("Unable to truncate journal segment", ex);
+        }
+        segment.close();
+    }
+
+    /**
+     * Release a mapping right away : Unsafe.invokeCleaner() on Java 9+, the buffer cleaner before. Otherwise, the mapping
+     * is released upon garbage collection.
+     */
+    private static void unmap(MappedByteBuffer mapped) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException ex) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), mapped);
+            } else {
+                Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapped);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            logger.debug("Unable to unmap a journal segment, left to garbage collection", ex);
+        }
+    }
+}
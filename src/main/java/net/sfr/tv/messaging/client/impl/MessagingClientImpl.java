@@ -15,10 +15,32 @@
  */
 package net.sfr.tv.messaging.client.impl;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import net.sfr.tv.exceptions.ResourceInitializerException;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import net.sfr.tv.messaging.api.SubscriptionDescriptor;
+import net.sfr.tv.messaging.api.connection.ConnectionManager;
 import net.sfr.tv.messaging.impl.MessagingProvidersConfiguration;
 import net.sfr.tv.messaging.api.connection.ConsumerConnectionManager;
 import net.sfr.tv.messaging.client.api.LifecycleController;
@@ -33,16 +55,49 @@ public abstract class MessagingClientImpl implements MessagingClient {
     
     private static final Logger logger = Logger.getLogger(MessagingClientImpl.class);
 
+    /**
+     * Index of the listener being instantiated by the current thread, among its client listeners of the same class.
+     */
+    private static final ThreadLocal<Integer> listenerIndex = new ThreadLocal<>();
+
     /**
      * Stateful JMS connection managers : Handles connection/failover for a logical group of JMS servers.
+     * Populated asynchronously, as connections get established.
      */
-    protected Map<String, ConsumerConnectionManager> cnxManagers;
+    protected final Map<String, ConsumerConnectionManager> cnxManagers = new ConcurrentSkipListMap<>();
 
     /**
      * Listener wrapper class (alternate to using a listener class
      */
     protected LifecycleController lifecycleController;
 
+    /**
+     * Dispatch stages, between sessions and listeners, if any.
+     */
+    protected final List<OrderedDispatcher> dispatchers = new ArrayList<>();
+
+    /**
+     * Client metrics, shared by connections, listeners and acknowledgers.
+     */
+    protected final ClientMetrics metrics = new ClientMetrics();
+
+    /**
+     * Acknowledgers instantiated along with the listeners, flushed upon shutdown.
+     */
+    private final Set<Acknowledger> acknowledgers = Collections.newSetFromMap(new ConcurrentHashMap<Acknowledger, Boolean>());
+
+    /**
+     * Connection attempts and retries.
+     */
+    private ScheduledExecutorService connector;
+
+    /**
+     * Guarded by this
+     */
+    private boolean started = false;
+
+    private boolean closed = false;
+
     /**
      * Constructor.
      *
@@ -65,17 +120,101 @@ public abstract class MessagingClientImpl implements MessagingClient {
             Class listenerClass,
             String[] destinations) throws ResourceInitializerException {
         
+        this(jndiProviderConfig, preferredServer, subscriptionBaseName, selector, lifecycleControllerClass, listenerClass, destinations, 1);
+    }
+    
+    /**
+     * Constructor.
+     *
+     * @param jndiProviderConfig References available JNDI servers & associated credentials.
+     * @param preferredServer Preferred server alias.
+     * @param subscriptionBaseName JMS subscription name prefix
+     * @param selector JMS selector
+     * @param lifecycleControllerClass LifecycleController class
+     * @param listenerClass name of the JMS Listener class
+     * @param destinations JNDI destinations to bind to
+     * @param concurrency Number of listener instances to register
+     * 
+     * @throws net.sfr.tv.exceptions.ResourceInitializerException
+     */
+    public MessagingClientImpl(
+            MessagingProvidersConfiguration jndiProviderConfig,
+            String preferredServer,
+            String subscriptionBaseName,
+            String selector,
+            Class lifecycleControllerClass,
+            Class listenerClass,
+            String[] destinations,
+            int concurrency) throws ResourceInitializerException {
+        
         lifecycleController = instantiateLifecycleController(lifecycleControllerClass, destinations);
-        lifecycleController.initListener(listenerClass);
+        for (int i = 0; i < Math.max(concurrency, 1); i++) {
+            initListener(listenerClass);
+        }
         
     }
     
+    /**
+     * Constructor, for clients registering their listeners themselves.
+     *
+     * @param lifecycleControllerClass LifecycleController class
+     * 
+     * @throws net.sfr.tv.exceptions.ResourceInitializerException
+     */
+    protected MessagingClientImpl(Class lifecycleControllerClass) throws ResourceInitializerException {
+        lifecycleController = instantiateLifecycleController(lifecycleControllerClass, null);
+    }
+    
+    /**
+     * Instantiate and register a listener. Its acknowledgers, if any, get flushed upon shutdown.
+     *
+     * @param listenerClass Listener class
+     * @throws ResourceInitializerException
+     */
+    protected final void initListener(Class listenerClass) throws ResourceInitializerException {
+        int idx = 0;
+        for (MessageConsumer listener : lifecycleController.getListeners()) {
+            if (listener.getClass() == listenerClass) {
+                idx++;
+            }
+        }
+        listenerIndex.set(idx);
+        Acknowledger.registerInto(acknowledgers);
+        try {
+            lifecycleController.initListener(listenerClass);
+        } finally {
+            Acknowledger.registerInto(null);
+            listenerIndex.remove();
+        }
+    }
+
+    /**
+     * @return The index of the listener being instantiated, among its client listeners of the same class. 0 if
+     * instantiated out of a client.
+     */
+    static int listenerIndex() {
+        Integer idx = listenerIndex.get();
+        return idx != null ? idx : 0;
+    }
+
     @Override
-    public void start() throws ResourceInitializerException {
+    public synchronized void start() throws ResourceInitializerException {
         
         lifecycleController.run();
         
-        // START MESSAGE DELIVERY
+        for (MessageConsumer listener : lifecycleController.getListeners()) {
+            if (MetricsAware.class.isAssignableFrom(listener.getClass())) {
+                ((MetricsAware) listener).setMetrics(metrics);
+            }
+        }
+        metrics.start();
+        
+        for (OrderedDispatcher dispatcher : dispatchers) {
+            dispatcher.start();
+        }
+        
+        // START MESSAGE DELIVERY, CONNECTIONS ESTABLISHED LATER ON GET STARTED UPON REGISTRATION
+        started = true;
         try {
             for (ConsumerConnectionManager cnxManager : cnxManagers.values()) {
                 cnxManager.start();
@@ -85,6 +224,259 @@ public abstract class MessagingClientImpl implements MessagingClient {
         }
     }
     
+    /**
+     * @return The registered listeners
+     */
+    public Collection<MessageConsumer> getListeners() {
+        return lifecycleController.getListeners();
+    }
+
+    /**
+     * @return The client metrics
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Establish connections and subscriptions in parallel, then register the resulting connection managers.
+     *
+     * Configured through system properties :
+     * <ul>
+     *  <li> 'client.connect.threads' : Max. number of concurrent connection attempts. Default 16.
+     *  <li> 'client.connect.timeout' : Startup deadline, in ms. Default 10000.
+     *  <li> 'client.connect.retry.interval' : Delay between two attempts, in ms. Default 5000.
+     * </ul>
+     *
+     * Returns once all the first attempts are done, or the startup deadline is reached. Failed or late connections
+     * are retried in the background, and start delivering as soon as established, if the client is started.
+     *
+     * @param tasks Connection tasks, by connection manager key
+     */
+    protected void connect(Map<String, Callable<ConsumerConnectionManager>> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (connector == null) {
+                connector = Executors.newScheduledThreadPool(Integer.getInteger("client.connect.threads", 16), new ThreadFactory() {
+                    private int idx = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "jalam-connect-" + idx++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                metrics.getRegistry().register(MetricRegistry.name("connections", "established"), new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return cnxManagers.size();
+                    }
+                });
+            }
+        }
+
+        long timeout = Long.getLong("client.connect.timeout", 10000L);
+        long retryInterval = Long.getLong("client.connect.retry.interval", 5000L);
+        CountDownLatch firstAttempts = new CountDownLatch(tasks.size());
+        for (Map.Entry<String, Callable<ConsumerConnectionManager>> task : tasks.entrySet()) {
+            connector.execute(new ConnectionTask(task.getKey(), task.getValue(), retryInterval, firstAttempts));
+        }
+        try {
+            if (!firstAttempts.await(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warn(String.valueOf(firstAttempts.getCount()).concat(" connection(s) still pending after ").concat(String.valueOf(timeout)).concat(" ms, carrying on in the background."));
+            }
+        } catch (InterruptedException ex) {
+            logger.warn("Got interrupted !");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connect, then subscribe to destinations. Connection is closed upon failure.
+     *
+     * @param cnxManager Connection manager
+     * @param listenerName Listener name, for logging
+     * @param destinations Destinations to subscribe to
+     * @param isTopicSubscription Topic subscription flag
+     * @param isDurableSubscription Durable subscription flag
+     * @param subscriptionBaseName Subscription name prefix
+     * @param selector Selector
+     * @return A connection task
+     */
+    protected Callable<ConsumerConnectionManager> subscriptionTask(
+            final ConsumerConnectionManager cnxManager,
+            final String listenerName,
+            final String[] destinations,
+            final boolean isTopicSubscription,
+            final boolean isDurableSubscription,
+            final String subscriptionBaseName,
+            final String selector) {
+
+        return new Callable<ConsumerConnectionManager>() {
+            @Override
+            public ConsumerConnectionManager call() throws Exception {
+                try {
+                    cnxManager.connect(2, TimeUnit.SECONDS);
+                    logger.info("Connection created for ".concat(listenerName));
+
+                    String subscriptionName;
+                    int subscriptionIdx = 0;
+                    for (String dest : destinations) {
+                        subscriptionName = subscriptionBaseName.concat("@").concat(dest).concat(destinations.length > 1 ? "-" + subscriptionIdx++ : "");
+                        cnxManager.subscribe(new SubscriptionDescriptor(dest, isTopicSubscription, isDurableSubscription, subscriptionName, selector), 2, TimeUnit.SECONDS);
+                        if (logger.isInfoEnabled() || logger.isDebugEnabled()) {
+                            logger.info("Destination : ".concat(dest).concat(", listener : ").concat(listenerName));
+                            logger.info("Subscription name : ".concat(subscriptionName));
+                            logger.info("Durable subscription ? ".concat(String.valueOf(isDurableSubscription)));
+                            logger.info("Filter : ".concat(selector != null ? selector : ""));
+                        }
+                    }
+                    return cnxManager;
+                } catch (Exception ex) {
+                    try {
+                        cnxManager.disconnect();
+                    } catch (Exception e) {
+                        logger.debug("Unable to close a failed connection", e);
+                    }
+                    throw ex;
+                }
+            }
+        };
+    }
+
+    private synchronized void register(String key, ConsumerConnectionManager cnxManager) {
+        if (closed) {
+            cnxManager.disconnect();
+            return;
+        }
+        cnxManagers.put(key, cnxManager);
+        logger.info("Connection established : ".concat(key));
+        if (started) {
+            try {
+                cnxManager.start();
+            } catch (Exception ex) {
+                logger.error("Unable to start message delivery for ".concat(key), ex);
+            }
+        }
+    }
+
+    /**
+     * Stop pending connection attempts, then close established connections, and stop metrics reporting.
+     * Closeable listeners are closed beforehand, so that none of them is left blocking a delivery thread.
+     */
+    protected void closeConnections() {
+        synchronized (this) {
+            closed = true;
+            if (connector != null) {
+                connector.shutdownNow();
+            }
+        }
+        for (MessageConsumer listener : lifecycleController.getListeners()) {
+            if (Closeable.class.isAssignableFrom(listener.getClass())) {
+                try {
+                    ((Closeable) listener).close();
+                } catch (IOException ex) {
+                    logger.warn("Unable to close ".concat(listener.toString()), ex);
+                }
+            }
+        }
+        for (ConnectionManager cnxManager : cnxManagers.values()) {
+            cnxManager.disconnect();
+        }
+        metrics.stop();
+    }
+
+    /**
+     * Drain dispatch stages, flush buffered listeners output, then pending acknowledgements. To be called before closing
+     * connections : Message delivery gets stopped on the sessions whose messages are acknowledged, beforehand.
+     */
+    protected void flushListeners() {
+        if (ClientMetrics.isEnabled()) {
+            Acknowledger.setLatencyTimer(metrics.getAcknowledgeTimer());
+        }
+        for (OrderedDispatcher dispatcher : dispatchers) {
+            dispatcher.flush();
+        }
+        for (MessageConsumer listener : lifecycleController.getListeners()) {
+            if (Flushable.class.isAssignableFrom(listener.getClass())) {
+                try {
+                    ((Flushable) listener).flush();
+                } catch (IOException ex) {
+                    logger.warn("Unable to flush ".concat(listener.toString()), ex);
+                }
+            }
+        }
+        for (Acknowledger acknowledger : acknowledgers) {
+            acknowledger.flush();
+        }
+        Acknowledger.setLatencyTimer(null);
+    }
+
+    /**
+     * Stop dispatch stages worker threads. To be called once connections are closed.
+     */
+    protected void releaseDispatchers() {
+        for (OrderedDispatcher dispatcher : dispatchers) {
+            dispatcher.release();
+        }
+    }
+    
+    /**
+     * Connection attempt, rescheduled until success or shutdown.
+     */
+    private final class ConnectionTask implements Runnable {
+
+        private final String key;
+
+        private final Callable<ConsumerConnectionManager> task;
+
+        private final long retryInterval;
+
+        private CountDownLatch firstAttempt;
+
+        private ConnectionTask(String key, Callable<ConsumerConnectionManager> task, long retryInterval, CountDownLatch firstAttempt) {
+            this.key = key;
+            this.task = task;
+            this.retryInterval = retryInterval;
+            this.firstAttempt = firstAttempt;
+        }
+
+        @Override
+        public void run() {
+            metrics.getRegistry().counter(MetricRegistry.name("connection", key, "attempts")).inc();
+            Object event = FlightRecorder.begin(FlightRecorder.EventType.CONNECT);
+            try {
+                register(key, task.call());
+                if (event != null) {
+                    FlightRecorder.commit(event, key, true);
+                }
+            } catch (Exception ex) {
+                metrics.getRegistry().counter(MetricRegistry.name("connection", key, "failures")).inc();
+                if (event != null) {
+                    FlightRecorder.commit(event, key, false);
+                }
+                if (firstAttempt != null) {
+                    logger.error("Unable to start a listener/context binded to : ".concat(key).concat(", retrying every ").concat(String.valueOf(retryInterval)).concat(" ms"), ex);
+                } else {
+                    logger.warn("Unable to start a listener/context binded to : ".concat(key).concat(" : ").concat(String.valueOf(ex.getMessage())));
+                }
+                try {
+                    connector.schedule(this, retryInterval, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                }
+            } finally {
+                if (firstAttempt != null) {
+                    firstAttempt.countDown();
+                    firstAttempt = null;
+                }
+            }
+        }
+    }
+
     /**
      * Instantiate the LifecycleControllerInterface with the specified classname and the given listeners
      *
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import net.sfr.tv.messaging.api.MessageConsumer;
+
+/**
+ * Metering stage, between a session delivery thread and a message consumer (or its dispatch stage) :
+ * Messages and bytes rates per servers group and destination, time spent in onMessage(). Profiled, and recorded as flight
+ * recorder events, if enabled. Ahead of a dispatch stage, only the hand-off to that stage gets timed and profiled.
+ *
+ * @see net.sfr.tv.messaging.client.impl.ClientMetrics
+ * @see net.sfr.tv.messaging.client.impl.ConsumerProfiler
+ * @see net.sfr.tv.messaging.client.impl.FlightRecorder
+ *
+ * @param <T> Message type
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class MeteredConsumer<T> implements MessageConsumer {
+
+    private final MetricRegistry registry;
+
+    private final String name;
+
+    private final Meter groupMeter;
+
+    private final Timer onMessageTimer;
+
+    private final Timer acknowledgeTimer;
+
+    /**
+     * Null unless profiling is enabled.
+     */
+    private final ConsumerProfiler profiler;
+
+    /**
+     * Messages and bytes meters, by destination.
+     */
+    private final ConcurrentMap<Object, DestinationMeters> destinationMeters = new ConcurrentHashMap<>();
+
+    /**
+     * @param metrics Client metrics
+     * @param group Servers group
+     * @param name Target consumer name
+     */
+    protected MeteredConsumer(ClientMetrics metrics, String group, String name) {
+        this.registry = metrics.getRegistry();
+        this.name = name;
+        this.groupMeter = registry.meter(MetricRegistry.name("group", group, "messages"));
+        this.onMessageTimer = registry.timer(MetricRegistry.name("listener", name, "onMessage"));
+        this.acknowledgeTimer = metrics.getAcknowledgeTimer();
+        this.profiler = ConsumerProfiler.isEnabled() ? new ConsumerProfiler(registry, name) : null;
+    }
+
+    /**
+     * @param msg
+     * @return The message destination, as a map key : Cheap to get, implementing equals() and hashCode(). Null if unknown.
+     */
+    protected abstract Object destination(T msg);
+
+    /**
+     * @param destination
+     * @return The destination name, called once per destination.
+     */
+    protected abstract String destinationName(Object destination);
+
+    /**
+     * @param msg
+     * @return The message body size, in bytes. Negative if unknown.
+     */
+    protected abstract long size(T msg);
+
+    /**
+     * Hand over a message to the target consumer.
+     *
+     * @param msg
+     */
+    protected abstract void process(T msg);
+
+    protected final void meter(T msg) {
+        groupMeter.mark();
+
+        Object destination = destination(msg);
+        DestinationMeters meters = null;
+        long size = -1;
+        if (destination != null) {
+            meters = destinationMeters.get(destination);
+            if (meters == null) {
+                meters = new DestinationMeters(registry, destinationName(destination));
+                destinationMeters.putIfAbsent(destination, meters);
+            }
+            meters.messages.mark();
+            size = size(msg);
+            if (size > 0) {
+                meters.bytes.mark(size);
+            }
+        }
+
+        Object received = FlightRecorder.begin(FlightRecorder.EventType.RECEIVE);
+        if (received != null) {
+            FlightRecorder.commit(received, meters != null ? meters.name : null, size);
+        }
+
+        ConsumerProfiler.Invocation invocation = profiler != null ? profiler.enter() : null;
+        Object event = FlightRecorder.begin(FlightRecorder.EventType.LISTENER);
+        // Acknowledgements are sent by the delivery thread
+        Acknowledger.setLatencyTimer(acknowledgeTimer);
+        long start = System.nanoTime();
+        try {
+            process(msg);
+        } finally {
+            onMessageTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            Acknowledger.setLatencyTimer(null);
+            if (event != null) {
+                FlightRecorder.commit(event, name);
+            }
+            if (invocation != null) {
+                profiler.exit(invocation);
+            }
+        }
+    }
+
+    private static final class DestinationMeters {
+
+        private final String name;
+
+        private final Meter messages;
+
+        private final Meter bytes;
+
+        private DestinationMeters(MetricRegistry registry, String name) {
+            this.name = name;
+            this.messages = registry.meter(MetricRegistry.name("destination", name, "messages"));
+            this.bytes = registry.meter(MetricRegistry.name("destination", name, "bytes"));
+        }
+    }
+
+    /**
+     * Target consumer is to be released by its lifecycle controller.
+     */
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.Flushable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Parallel dispatch stage, between a session delivery thread and a message consumer. Two modes are available :
+ * <ul>
+ *  <li> ORDERED : Messages are hashed on a key (message property) onto a pool of worker threads : messages sharing a key
+ * are processed in order, messages with different keys in parallel. Messages without a key are spread round-robin.
+ *  <li> VIRTUAL : Each message is processed on its own virtual thread, without ordering. Suited to consumers doing
+ * blocking I/O. Falls back to platform threads on JVMs without virtual threads support.
+ * </ul>
+ * In both modes, the number of in-flight messages is bounded.
+ *
+ * Acknowledgements issued by the consumer are ignored : Through acknowledgers, or the messages themselves, handed over as
+ * views whose acknowledge() is a no-op (see {@link #withoutAcknowledge(Object)}). The dispatcher acknowledges messages once processed, per channel
+ * (session or consumer the messages got delivered through, see {@link Acknowledger#channel(Object)}). Acknowledgements are
+ * sent by the delivery threads, as sessions are not to be used concurrently :
+ * <ul>
+ *  <li> Per consumer acknowledgement (HornetQ core) : Upon delivery, the last message of the consumer within the completed
+ * prefix of its deliveries gets acknowledged, through the configured acknowledgement policy. A slow message holds back
+ * the acknowledgements of its consumer only, not the in-flight messages limit.
+ *  <li> Session wide acknowledgement (JMS) : Acknowledging any message acknowledges all the messages delivered so far by
+ * the session. Hence the delivery thread waits for the completion of all the messages dispatched from its session, every
+ * 'listener.dispatch.ack.barrier' messages, then acknowledges.
+ * </ul>
+ * Remaining acknowledgements are sent upon flush(), once in-flight messages are processed. Consumers acknowledging messages
+ * once written (Flushable consumers) are to be flushed by the acknowledger beforehand.
+ *
+ * Configured through system properties :
+ * <ul>
+ *  <li> 'listener.dispatch.mode' : ORDERED, VIRTUAL. Dispatch is disabled unless set, or worker threads are.
+ *  <li> 'listener.dispatch.threads' : ORDERED mode, number of worker threads. Default 0, dispatch disabled.
+ *  <li> 'listener.dispatch.key' : ORDERED mode, ordering key property.
+ *  <li> 'listener.dispatch.capacity' : Max. number of in-flight messages. Delivery blocks once reached. Default 1024.
+ *  <li> 'listener.dispatch.ack.barrier' : Session wide acknowledgement, max. number of unacknowledged messages per session.
+ * Default, the capacity. The session's in-flight messages are processed to completion each time it is reached : In-flight
+ * messages per session are capped by the barrier, hence a lower barrier processes messages by smaller batches.
+ * </ul>
+ *
+ * @param <T> Message type
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class OrderedDispatcher<T> implements MessageConsumer, Flushable {
+
+    private static final Logger logger = Logger.getLogger(OrderedDispatcher.class);
+
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    /**
+     * Messages whose channel is unknown share a single channel.
+     */
+    private static final Object UNKNOWN_CHANNEL = new Object();
+
+    /**
+     * Messages views constructors, by message class. Null for classes that can't be proxied.
+     */
+    private static final ClassValue<Constructor<?>> views = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            Set<Class<?>> interfaces = new LinkedHashSet<>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Class<?> i : c.getInterfaces()) {
+                    if (Modifier.isPublic(i.getModifiers())) {
+                        interfaces.add(i);
+                    }
+                }
+            }
+            try {
+                return Proxy.getProxyClass(type.getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()])).getConstructor(InvocationHandler.class);
+            } catch (IllegalArgumentException | NoSuchMethodException ex) {
+                logger.warn("Unable to proxy ".concat(type.getName()).concat(", its acknowledgements won't be ignored."), ex);
+                return null;
+            }
+        }
+    };
+
+    public enum Mode {
+        ORDERED, VIRTUAL
+    }
+
+    private final Mode mode;
+
+    private final String name;
+
+    private final Acknowledger<T> acknowledger;
+
+    private final boolean sessionWideAck;
+
+    private final int ackBarrier;
+
+    /**
+     * ORDERED mode workers.
+     */
+    private final Worker<T>[] workers;
+
+    /**
+     * VIRTUAL mode executor.
+     */
+    private ExecutorService executor;
+
+    private final int capacity;
+
+    /**
+     * Free slots, one per in-flight messages permit. Guarded by this.
+     */
+    private final Deque<Slot<T>> slots;
+
+    /**
+     * Channels in-flight messages and pending acknowledgements, by key. Guarded by this.
+     */
+    private final Map<Object, Channel<T>> channels = new HashMap<>();
+
+    private final Semaphore permits;
+
+    /**
+     * Guarded by this
+     */
+    private long dispatched;
+
+    /**
+     * Number of completed messages. Guarded by this
+     */
+    private long completed;
+
+
+    public static boolean isEnabled() {
+        return System.getProperty("listener.dispatch.mode") != null || Integer.getInteger("listener.dispatch.threads", 0) > 0;
+    }
+
+    /**
+     * @param name Target consumer name, for worker threads naming
+     * @param acknowledger Acknowledgement policy
+     * @param sessionWideAck true if acknowledging a message acknowledges all the messages delivered by the session.
+     */
+    protected OrderedDispatcher(String name, Acknowledger<T> acknowledger, boolean sessionWideAck) {
+        this.mode = Mode.valueOf(System.getProperty("listener.dispatch.mode", Mode.ORDERED.name()).toUpperCase());
+        this.name = name;
+        this.acknowledger = acknowledger;
+        this.sessionWideAck = sessionWideAck;
+        this.capacity = Math.max(Integer.getInteger("listener.dispatch.capacity", 1024), 1);
+        this.ackBarrier = Math.max(Integer.getInteger("listener.dispatch.ack.barrier", capacity), 1);
+        slots = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots.push(new Slot<>(this));
+        }
+        permits = new Semaphore(capacity);
+
+        workers = new Worker[mode == Mode.ORDERED ? Math.max(Integer.getInteger("listener.dispatch.threads", 1), 1) : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker<>(this, "jalam-dispatch-" + name + "-" + i, capacity);
+        }
+    }
+
+    /**
+     * Start the worker threads, or executor. To be called before message delivery starts.
+     */
+    public void start() {
+        if (mode == Mode.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+            logger.info("Dispatching to ".concat(name).concat(" on virtual threads, max. in-flight messages : ").concat(String.valueOf(capacity)));
+        } else {
+            for (Worker<T> worker : workers) {
+                worker.start();
+            }
+            logger.info("Dispatching to ".concat(name).concat(" with ").concat(String.valueOf(workers.length)).concat(" threads"));
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), if available at runtime.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            logger.warn("Virtual threads are not available on this JVM, falling back to platform threads.");
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private int idx = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "jalam-dispatch-" + name + "-" + idx++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * @param msg
+     * @return The message ordering key, or null.
+     */
+    protected abstract String key(T msg);
+
+    /**
+     * Hand over a message to the target consumer.
+     *
+     * @param msg
+     */
+    protected abstract void process(T msg);
+
+    /**
+     * To be called by the session delivery thread, which also sends the acknowledgements of its channel.
+     *
+     * @param msg
+     */
+    protected final void dispatch(T msg) {
+        permits.acquireUninterruptibly();
+
+        Object key = acknowledger.channel(msg);
+        long seq;
+        Slot<T> slot;
+        Channel<T> channel;
+        T completedMsg = null;
+        boolean barrier = false;
+        synchronized (this) {
+            channel = channels.get(key != null ? key : UNKNOWN_CHANNEL);
+            if (channel == null) {
+                channel = new Channel<>();
+                channels.put(key != null ? key : UNKNOWN_CHANNEL, channel);
+            }
+            seq = dispatched++;
+            slot = slots.pop();
+            slot.msg = msg;
+            slot.channel = channel;
+            channel.inFlight++;
+            if (sessionWideAck) {
+                barrier = ++channel.unacknowledged >= ackBarrier;
+            } else {
+                // Link the slot to the channel in-flight messages, in delivery order
+                slot.previous = channel.last;
+                slot.older = channel.newest;
+                if (channel.newest != null) {
+                    channel.newest.newer = slot;
+                } else {
+                    channel.oldest = slot;
+                }
+                channel.newest = slot;
+                completedMsg = channel.lastCompleted;
+                channel.lastCompleted = null;
+            }
+            channel.last = msg;
+        }
+
+        if (mode == Mode.VIRTUAL) {
+            executor.execute(slot);
+        } else {
+            String orderingKey = key(msg);
+            int idx = orderingKey != null ? (orderingKey.hashCode() & Integer.MAX_VALUE) % workers.length : (int) (seq % workers.length);
+            workers[idx].queue.add(slot);
+        }
+
+        if (completedMsg != null) {
+            acknowledger.acknowledge(completedMsg);
+        }
+
+        if (barrier) {
+            synchronized (this) {
+                try {
+                    while (channel.inFlight > 0) {
+                        wait();
+                    }
+                    channel.unacknowledged = 0;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            acknowledger.acknowledge(msg);
+        }
+    }
+
+    private void handle(Slot<T> slot) {
+        try {
+            process(slot.msg);
+        } catch (Throwable t) {
+            logger.error("Unhandled error while processing ".concat(String.valueOf(slot.msg)), t);
+        }
+        complete(slot);
+    }
+
+    private synchronized void complete(Slot<T> slot) {
+        Channel<T> channel = slot.channel;
+        boolean channelDone = --channel.inFlight == 0;
+
+        if (!sessionWideAck) {
+            // Oldest in-flight message : The completed prefix extends up to the message delivered before the next
+            // in-flight one, or to the last delivered message.
+            if (slot.older == null) {
+                channel.lastCompleted = slot.newer != null ? slot.newer.previous : channel.last;
+                channel.oldest = slot.newer;
+            } else {
+                slot.older.newer = slot.newer;
+            }
+            if (slot.newer != null) {
+                slot.newer.older = slot.older;
+            } else {
+                channel.newest = slot.older;
+            }
+            slot.previous = null;
+            slot.older = null;
+            slot.newer = null;
+        }
+        slot.msg = null;
+        slot.channel = null;
+        slots.push(slot);
+        completed++;
+        permits.release();
+
+        if (channelDone || completed == dispatched) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop message delivery on the channels, wait for in-flight messages completion, then acknowledge them. Upon
+     * shutdown, acknowledgements are sent by the calling thread, while delivery is stopped.
+     */
+    @Override
+    public void flush() {
+        List<Object> keys;
+        synchronized (this) {
+            keys = new ArrayList<Object>(channels.keySet());
+        }
+        acknowledger.stopDelivery(keys);
+
+        List<T> pending = new ArrayList<>();
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+            long remaining;
+            try {
+                while (completed < dispatched && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (completed < dispatched) {
+                logger.warn(String.valueOf(dispatched - completed).concat(" messages still in-flight, they won't be acknowledged."));
+            }
+            for (Iterator<Channel<T>> it = channels.values().iterator(); it.hasNext();) {
+                Channel<T> channel = it.next();
+                if (sessionWideAck) {
+                    if (channel.unacknowledged > 0 && channel.inFlight == 0) {
+                        pending.add(channel.last);
+                        channel.unacknowledged = 0;
+                    }
+                } else if (channel.lastCompleted != null) {
+                    pending.add(channel.lastCompleted);
+                    channel.lastCompleted = null;
+                }
+                if (channel.inFlight == 0) {
+                    it.remove();
+                }
+            }
+        }
+        for (T msg : pending) {
+            acknowledger.acknowledge(msg);
+        }
+        acknowledger.flush();
+    }
+
+    /**
+     * Stop the worker threads, or executor. Target consumer is to be released by its lifecycle controller.
+     */
+    @Override
+    public void release() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Worker<T> worker : workers) {
+            worker.running = false;
+        }
+        for (Worker<T> worker : workers) {
+            try {
+                worker.join(DRAIN_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        acknowledger.release();
+    }
+
+    /**
+     * @param msg
+     * @return A view of the message, implementing the same interfaces, whose acknowledge() (and individualAcknowledge(),
+     * HornetQ core) are no-ops : Consumers
+     * acknowledging messages themselves would otherwise use the session concurrently with its delivery thread. The
+     * message itself if it can't be proxied.
+     */
+    protected static <M> M withoutAcknowledge(final M msg) {
+        Constructor<?> view = views.get(msg.getClass());
+        if (view == null) {
+            return msg;
+        }
+        try {
+            return (M) view.newInstance(new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ((method.getName().equals("acknowledge") || method.getName().equals("individualAcknowledge"))
+                            && method.getParameterTypes().length == 0) {
+                        return null;
+                    }
+                    try {
+                        return method.invoke(msg, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                }
+            });
+        } catch (ReflectiveOperationException ex) {
+            return msg;
+        }
+    }
+
+    /**
+     * In-flight message. Also the VIRTUAL mode task.
+     */
+    private static final class Slot<T> implements Runnable {
+
+        private final OrderedDispatcher<T> dispatcher;
+
+        private T msg;
+
+        private Channel<T> channel;
+
+        /**
+         * Per consumer acknowledgement : Message of the channel delivered right before this one, if any.
+         */
+        private T previous;
+
+        /**
+         * Per consumer acknowledgement : Channel in-flight messages, older and newer ones.
+         */
+        private Slot<T> older;
+
+        private Slot<T> newer;
+
+        private Slot(OrderedDispatcher<T> dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void run() {
+            Acknowledger.delegateTo(dispatcher.acknowledger);
+            dispatcher.handle(this);
+        }
+    }
+
+    /**
+     * Session or consumer state. Guarded by the dispatcher.
+     */
+    private static final class Channel<T> {
+
+        private long inFlight;
+
+        /**
+         * Session wide acknowledgement : Dispatched messages since the last acknowledgement.
+         */
+        private long unacknowledged;
+
+        private T last;
+
+        /**
+         * Per consumer acknowledgement : Last message within the completed prefix, to be acknowledged.
+         */
+        private T lastCompleted;
+
+        /**
+         * Per consumer acknowledgement : In-flight messages, oldest and newest.
+         */
+        private Slot<T> oldest;
+
+        private Slot<T> newest;
+    }
+
+    private static final class Worker<T> extends Thread {
+
+        private final OrderedDispatcher<T> dispatcher;
+
+        private final BlockingQueue<Slot<T>> queue;
+
+        private volatile boolean running = true;
+
+        private Worker(OrderedDispatcher<T> dispatcher, String name, int capacity) {
+            super(name);
+            setDaemon(true);
+            this.dispatcher = dispatcher;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            // Consumer acknowledgements are left to the dispatcher
+            Acknowledger.delegateTo(dispatcher.acknowledger);
+
+            Slot<T> slot;
+            while (running || !queue.isEmpty()) {
+                try {
+                    slot = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                if (slot != null) {
+                    dispatcher.handle(slot);
+                }
+            }
+        }
+    }
+}
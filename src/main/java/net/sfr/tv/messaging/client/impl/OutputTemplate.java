@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message output template, compiled once into a sequence of field writers : Only the referenced headers, properties and
+ * body parts are read, and written straight into a reusable buffer.
+ *
+ * Template syntax : Literal text, and fields :
+ * <ul>
+ *  <li> '${[header]}' : A message header, e.g. '${JMSMessageID}'. Available headers depend on the API.
+ *  <li> '${prop:[name]}' : A message property, 'null' if unset.
+ *  <li> '${properties}' : All message properties, one per line, as '\n\t[name] : [value]'.
+ *  <li> '${body}', '${body:[max]}' : The message body, possibly truncated to max characters.
+ *  <li> '${bodyLength}' : The message body length.
+ * </ul>
+ * Escape sequences '\n' and '\t' are supported in literal text.
+ *
+ * Example : '${JMSMessageID} ${prop:foo} ${body:200}'
+ *
+ * @param <T> Message type
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class OutputTemplate<T> {
+
+    /**
+     * A compiled template field.
+     *
+     * @param <T> Message type
+     */
+    public interface Field<T> {
+
+        void write(T msg, StringBuilder out) throws Exception;
+    }
+
+    private final String pattern;
+
+    private final Field<T>[] fields;
+
+    private final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Compile a template. Fields get created meanwhile : They may not depend on the implementation instance state.
+     *
+     * @param pattern Template
+     * @throws IllegalArgumentException Upon unknown or malformed fields.
+     */
+    protected OutputTemplate(String pattern) {
+        this.pattern = pattern;
+        this.fields = compile(pattern);
+    }
+
+    /**
+     * @param name Header name
+     * @return The header field, or null if unknown.
+     */
+    protected abstract Field<T> header(String name);
+
+    /**
+     * @param name Property name
+     * @return The property field.
+     */
+    protected abstract Field<T> property(String name);
+
+    /**
+     * @return The all properties field.
+     */
+    protected abstract Field<T> properties();
+
+    /**
+     * @param maxLength Max. number of characters, negative for the whole body.
+     * @return The body field.
+     */
+    protected abstract Field<T> body(int maxLength);
+
+    /**
+     * @return The body length field.
+     */
+    protected abstract Field<T> bodyLength();
+
+    private Field<T>[] compile(String pattern) {
+        List<Field<T>> result = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '$' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '{') {
+                int end = pattern.indexOf('}', i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated field at ".concat(String.valueOf(i)).concat(" : ").concat(pattern));
+                }
+                if (literal.length() > 0) {
+                    result.add(literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                result.add(field(pattern.substring(i + 2, end).trim()));
+                i = end + 1;
+            } else if (c == '\\' && i + 1 < pattern.length() && (pattern.charAt(i + 1) == 'n' || pattern.charAt(i + 1) == 't')) {
+                literal.append(pattern.charAt(i + 1) == 'n' ? '\n' : '\t');
+                i += 2;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0) {
+            result.add(literal(literal.toString()));
+        }
+        return result.toArray(new Field[result.size()]);
+    }
+
+    private Field<T> field(String name) {
+        Field<T> field;
+        if (name.startsWith("prop:")) {
+            field = property(name.substring("prop:".length()));
+        } else if (name.equals("properties")) {
+            field = properties();
+        } else if (name.equals("body")) {
+            field = body(-1);
+        } else if (name.startsWith("body:")) {
+            field = body(Integer.parseInt(name.substring("body:".length()).trim()));
+        } else if (name.equals("bodyLength")) {
+            field = bodyLength();
+        } else {
+            field = header(name);
+        }
+        if (field == null) {
+            throw new IllegalArgumentException("Unknown template field : ".concat(name));
+        }
+        return field;
+    }
+
+    private Field<T> literal(final String text) {
+        return new Field<T>() {
+            @Override
+            public void write(T msg, StringBuilder out) {
+                out.append(text);
+            }
+        };
+    }
+
+    /**
+     * Append a possibly truncated char sequence.
+     *
+     * @param text
+     * @param maxLength Negative for the whole sequence
+     * @param out
+     */
+    protected static void append(CharSequence text, int maxLength, StringBuilder out) {
+        if (text == null) {
+            out.append("null");
+        } else {
+            out.append(text, 0, maxLength < 0 ? text.length() : Math.min(text.length(), maxLength));
+        }
+    }
+
+    /**
+     * @param msg
+     * @param out Buffer the message gets formatted into
+     * @throws Exception
+     */
+    public void format(T msg, StringBuilder out) throws Exception {
+        for (Field<T> field : fields) {
+            field.write(msg, out);
+        }
+    }
+
+    /**
+     * @param msg
+     * @return The formatted message, built in a per thread reusable buffer.
+     * @throws Exception
+     */
+    public String format(T msg) throws Exception {
+        StringBuilder out = buffers.get();
+        out.setLength(0);
+        format(msg, out);
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
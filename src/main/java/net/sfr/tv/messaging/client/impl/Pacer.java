@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed rate pacing, shared by several threads : Every call claims the next send slot, then waits for it.
+ * Threads running late don't wait, hence catch up with the schedule rather than lowering the rate.
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public final class Pacer {
+
+    /**
+     * Slot interval, in ns. 0 for open loop.
+     */
+    private final long interval;
+
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param rate Events per second. 0 or less for open loop, no pacing.
+     */
+    public Pacer(double rate) {
+        this.interval = rate > 0 ? Math.max((long) (TimeUnit.SECONDS.toNanos(1) / rate), 1L) : 0L;
+        next.set(System.nanoTime());
+    }
+
+    /**
+     * Wait for the next slot.
+     *
+     * @return The slot intended time (System.nanoTime() based), or the current time in open loop.
+     */
+    public long acquire() {
+        if (interval == 0) {
+            return System.nanoTime();
+        }
+        long slot = next.getAndAdd(interval);
+        long delay;
+        while ((delay = slot - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(delay);
+        }
+        return slot;
+    }
+
+    /**
+     * Restart the schedule from now.
+     */
+    public void reset() {
+        next.set(System.nanoTime());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 matthieu.chaplin@sfr.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sfr.tv.messaging.client.impl;
+
+import java.io.Closeable;
+import net.sfr.tv.messaging.api.MessageConsumer;
+import org.apache.log4j.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive Streams view of a subscription : Received messages are published to a single subscriber, as requested.
+ *
+ * Without demand, the session delivery thread waits : The client consumer buffer stops being drained, so the server
+ * stops sending once the consumer window is full (see the connection factory consumer window size). Client memory
+ * is thus bounded by the consumer window, however slow the subscriber.
+ *
+ * Messages are acknowledged, according to the 'listener.ack.*' policy, once onNext() returns. Once the subscription
+ * is cancelled, delivery stops until the client shuts down, and the subscriber is completed upon shutdown.
+ *
+ * Subscribe before starting the client :
+ * <pre>
+ *  for (MessageConsumer listener : client.getListeners()) {
+ *      ((Publisher&lt;Message&gt;) listener).subscribe(subscriber);
+ *  }
+ *  client.start();
+ * </pre>
+ *
+ * @param <T> Message type
+ *
+ * @author matthieu.chaplin@sfr.com
+ */
+public abstract class ReactiveConsumerImpl<T> implements MessageConsumer, Publisher<T>, Closeable {
+
+    private static final Logger logger = Logger.getLogger(ReactiveConsumerImpl.class);
+
+    /**
+     * Guards subscription state, demand.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Serializes signals to the subscriber.
+     */
+    private final Object signalLock = new Object();
+
+    private Subscriber<? super T> subscriber;
+
+    private long demand;
+
+    private boolean cancelled = false;
+
+    private boolean released = false;
+
+    @Override
+    public void subscribe(final Subscriber<? super T> s) {
+        if (s == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        boolean accepted;
+        synchronized (lock) {
+            accepted = subscriber == null && !released;
+            if (accepted) {
+                subscriber = s;
+            }
+        }
+        if (!accepted) {
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("Only a single subscriber is supported, per subscription"));
+            return;
+        }
+
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancel();
+                    synchronized (signalLock) {
+                        s.onError(new IllegalArgumentException("Non-positive request : ".concat(String.valueOf(n))));
+                    }
+                    return;
+                }
+                synchronized (lock) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (lock) {
+                    cancelled = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Publish a message, once requested. Called by the delivery thread.
+     *
+     * @param msg
+     * @return true if published, false if released or interrupted meanwhile.
+     */
+    protected final boolean publish(T msg) {
+        Subscriber<? super T> s;
+        synchronized (lock) {
+            try {
+                while (!released && (cancelled || subscriber == null || demand == 0)) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (released) {
+                return false;
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            s = subscriber;
+        }
+
+        synchronized (signalLock) {
+            try {
+                s.onNext(msg);
+            } catch (Throwable t) {
+                // Subscribers are not supposed to throw : Consider the subscription cancelled
+                logger.error("Subscriber failure, cancelling subscription", t);
+                synchronized (lock) {
+                    cancelled = true;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop publishing, releasing a delivery thread waiting for demand, and complete the subscriber.
+     * Called before the connections get closed.
+     */
+    @Override
+    public void close() {
+        Subscriber<? super T> s;
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+            s = cancelled ? null : subscriber;
+            lock.notifyAll();
+        }
+        if (s != null) {
+            synchronized (signalLock) {
+                s.onComplete();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+}
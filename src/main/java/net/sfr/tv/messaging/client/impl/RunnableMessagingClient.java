@@ -34,6 +34,8 @@ public class RunnableMessagingClient implements Runnable {
     
     private final MessagingClient client;
     
+    private boolean shutdown = false;
+    
     /**
      * @see net.sfr.tv.jms.client.JmsClientImpl
      * 
@@ -61,7 +63,13 @@ public class RunnableMessagingClient implements Runnable {
         }
     }
     
-    public void shutdown() {
-        this.client.shutdown();
+    /**
+     * Client shutdown : In-flight messages are drained, then connections closed. Only the first call is effective.
+     */
+    public synchronized void shutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            this.client.shutdown();
+        }
     }
 }
@@ -15,36 +15,31 @@
  */
 package net.sfr.tv.messaging.client.impl;
 
-import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.Meter;
-import com.codahale.metrics.MetricRegistry;
-import java.util.concurrent.TimeUnit;
 import net.sfr.tv.messaging.api.MessageConsumer;
 
 /**
+ * Throughput consumer : Messages get counted into the client metrics, reported to the console unless
+ * reporters are configured.
+ *
+ * @see net.sfr.tv.messaging.client.impl.ClientMetrics
  *
  * @author matthieu.chaplin@sfr.com
  */
-public abstract class ThroughputConsumerImpl implements MessageConsumer {
+public abstract class ThroughputConsumerImpl implements MessageConsumer, MetricsAware {
+
+    /**
+     * Standalone meter, until the client metrics get injected.
+     */
+    protected Meter messagesMeter = new Meter();
 
-    private static final MetricRegistry metrics = new MetricRegistry();
-    
-    private final ConsoleReporter reporter;
-    
-    protected final Meter messagesMeter = metrics.meter("Throughput");
-    
-    public ThroughputConsumerImpl() {
-        
-        reporter = ConsoleReporter.forRegistry(metrics)
-          .convertRatesTo(TimeUnit.SECONDS)
-          .convertDurationsTo(TimeUnit.MILLISECONDS)
-          .build();
-        reporter.start(5, TimeUnit.SECONDS);
+    @Override
+    public void setMetrics(ClientMetrics metrics) {
+        messagesMeter = metrics.getRegistry().meter("Throughput");
+        metrics.requestReporting();
     }
-    
+
     @Override
     public void release() {
-        reporter.stop();
-        reporter.close();
     }
 }